@@ -0,0 +1,23 @@
+package org.apache.jasper.runtime;
+
+/**
+ * Thrown when a chunk can't be allocated because the {@link BufferMemoryManager} budget is used up and no memory
+ * was released in time.
+ */
+public class BufferBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long requestedBytes;
+
+    public BufferBudgetExceededException(String message, long requestedBytes) {
+        super(message);
+        this.requestedBytes = requestedBytes;
+    }
+
+    /**
+     * @return the size of the reservation that failed
+     */
+    public long getRequestedBytes() {
+        return requestedBytes;
+    }
+}
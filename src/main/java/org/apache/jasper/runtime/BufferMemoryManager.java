@@ -0,0 +1,249 @@
+package org.apache.jasper.runtime;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A memory budget shared by chunked buffers. Once a manager is installed with {@link #setGlobal}, every
+ * {@link ChunkedBuffer}, {@link ChunkedByteArray}, {@link ChunkedPipe} and chunked primitive array created afterwards
+ * reserves each chunk against it before allocating the chunk, and gives the memory back when it drops chunks
+ * ({@code clear()}, {@code trimToSize()}, a pipe's reader consuming them) or is garbage collected.
+ * <p>
+ * When a reservation doesn't fit, the {@link PressureHandler}, if any, gets a chance to free memory, for instance by
+ * spilling or evicting cached buffers. If that isn't enough the {@link Policy} decides: fail right away or wait up
+ * to the timeout for other buffers to release memory. Either way a {@link BufferBudgetExceededException} is thrown
+ * when the chunk can't be had.
+ */
+public class BufferMemoryManager {
+    public enum Policy {
+        /**
+         * Throw {@link BufferBudgetExceededException} as soon as the budget is used up.
+         */
+        FAIL,
+        /**
+         * Wait up to the timeout for memory to be released, then throw {@link BufferBudgetExceededException}.
+         */
+        BLOCK
+    }
+
+    /**
+     * Called when a reservation doesn't fit in the budget, before the policy applies.
+     */
+    public interface PressureHandler {
+        /**
+         * @param manager     the manager running out of memory
+         * @param bytesNeeded how much more memory the failing reservation needs
+         */
+        void onPressure(BufferMemoryManager manager, long bytesNeeded);
+    }
+
+    private static final long EXPUNGE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static volatile BufferMemoryManager global;
+
+    private final long maxBytes;
+    private final Policy policy;
+    private final long timeoutNanos;
+    private volatile PressureHandler pressureHandler;
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private volatile int waiting;
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+    /**
+     * A manager that fails as soon as {@code maxBytes} are reserved.
+     */
+    public BufferMemoryManager(long maxBytes) {
+        this(maxBytes, Policy.FAIL, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public BufferMemoryManager(long maxBytes, Policy policy, long timeout, TimeUnit unit) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy: may not be null.");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout may not be negative");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("unit: may not be null.");
+        }
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Installs the manager that buffers created from now on reserve their chunks against, or removes it when
+     * {@code manager} is null. Buffers that already exist keep the manager they were created with.
+     */
+    public static void setGlobal(BufferMemoryManager manager) {
+        global = manager;
+    }
+
+    public static BufferMemoryManager getGlobal() {
+        return global;
+    }
+
+    public void setPressureHandler(PressureHandler pressureHandler) {
+        this.pressureHandler = pressureHandler;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the bytes currently reserved by live buffers, and by collected ones not noticed yet
+     */
+    public long getReservedBytes() {
+        return reserved.get();
+    }
+
+    public long getAvailableBytes() {
+        return maxBytes - reserved.get();
+    }
+
+    /**
+     * @return the number of buffers holding memory from this manager
+     */
+    public int getBufferCount() {
+        expungeCollected();
+        return leases.size();
+    }
+
+    Lease register(Object owner) {
+        expungeCollected();
+        Lease lease = new Lease(owner, this);
+        leases.add(lease);
+        return lease;
+    }
+
+    private boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > maxBytes) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    private void reserve(long bytes) {
+        if (tryReserve(bytes)) {
+            return;
+        }
+        expungeCollected();
+        PressureHandler handler = pressureHandler;
+        if (handler != null && reserved.get() + bytes > maxBytes) {
+            handler.onPressure(this, reserved.get() + bytes - maxBytes);
+        }
+        if (tryReserve(bytes)) {
+            return;
+        }
+        if (policy == Policy.FAIL || bytes > maxBytes) {
+            throw exceeded(bytes);
+        }
+        lock.lock();
+        waiting++;
+        try {
+            long nanos = timeoutNanos;
+            while (!tryReserve(bytes)) {
+                if (nanos <= 0) {
+                    throw exceeded(bytes);
+                }
+                // wake up now and then to give back the memory of collected buffers
+                long slice = Math.min(nanos, EXPUNGE_INTERVAL_NANOS);
+                nanos -= slice - released.awaitNanos(slice);
+                expungeCollected();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BufferBudgetExceededException("Interrupted while waiting for buffer memory", bytes);
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    private BufferBudgetExceededException exceeded(long bytes) {
+        return new BufferBudgetExceededException("Buffer memory budget of " + maxBytes + " bytes exceeded, "
+                + reserved.get() + " bytes reserved, " + bytes + " more requested", bytes);
+    }
+
+    private void release(long bytes) {
+        reserved.addAndGet(-bytes);
+        if (waiting > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            Lease lease = (Lease) ref;
+            if (leases.remove(lease)) {
+                release(lease.bytes.getAndSet(0));
+            }
+        }
+    }
+
+    /**
+     * The memory reserved by one buffer, given back when the buffer is garbage collected. A {@link ChunkedPipe}
+     * reserves from its writer and releases from its reader, so the count is atomic.
+     */
+    static final class Lease extends PhantomReference<Object> {
+        private final BufferMemoryManager manager;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Lease(Object owner, BufferMemoryManager manager) {
+            super(owner, manager.collected);
+            this.manager = manager;
+        }
+
+        /**
+         * Reserves {@code bytes} more, applying the manager's policy when they don't fit.
+         */
+        void reserve(long bytes) {
+            manager.reserve(bytes);
+            this.bytes.addAndGet(bytes);
+        }
+
+        /**
+         * Takes over {@code bytes} that were already in use elsewhere, so without applying the budget.
+         */
+        void adopt(long bytes) {
+            manager.reserved.addAndGet(bytes);
+            this.bytes.addAndGet(bytes);
+        }
+
+        void release(long bytes) {
+            this.bytes.addAndGet(-bytes);
+            manager.release(bytes);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * In-memory compression of the sealed (completely filled) chunks of long-lived {@link ChunkedBuffer} and
+ * {@link ChunkedByteArray} instances, see {@code setChunkCompression}. Compressed chunks are inflated again when they
+ * are read, through {@code getChars}, the readers, {@code writeOut} and everything else, and each buffer keeps a few
+ * recently inflated chunks in a cache so sequential reads don't inflate the same chunk over and over.
+ * <p>
+ * Chunks are compressed when the owner of the buffer calls {@code compressSealedChunks()}, for instance when the
+ * buffer goes into a cache or hasn't been touched for a while, and automatically as they are sealed once the buffer
+ * holds more than {@link #getThreshold()} bytes. A chunk that doesn't get smaller stays as it is. While compressed,
+ * the memory saved is given back to the {@link BufferMemoryManager}.
+ * <p>
+ * {@link Deflater} and {@link Inflater} instances are pooled, so one instance can be shared by many buffers and
+ * threads.
+ */
+public class ChunkCompression {
+    public static final int DEFAULT_CACHE_SIZE = 4;
+    public static final int DEFAULT_MAX_POOLED = 8;
+
+    private final int level;
+    private final int cacheSize;
+    private final long threshold;
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+
+    public ChunkCompression() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public ChunkCompression(int level) {
+        this(level, DEFAULT_CACHE_SIZE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param cacheSize the number of inflated chunks each buffer keeps
+     * @param threshold the size in bytes beyond which a buffer compresses chunks as soon as they are sealed
+     */
+    public ChunkCompression(int level, int cacheSize, long threshold) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 0 and 9");
+        }
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("cacheSize must be positive");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold may not be negative");
+        }
+        this.level = level;
+        this.cacheSize = cacheSize;
+        this.threshold = threshold;
+        this.deflaters = new ArrayBlockingQueue<Deflater>(DEFAULT_MAX_POOLED);
+        this.inflaters = new ArrayBlockingQueue<Inflater>(DEFAULT_MAX_POOLED);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Compresses the first {@code len} bytes of {@code src} into {@code out}, which must hold at least
+     * {@code len - 1} bytes.
+     *
+     * @return the compressed length, or -1 if compression doesn't make the bytes smaller
+     */
+    int compress(byte[] src, int len, byte[] out) {
+        if (len < 2) {
+            return -1;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.setInput(src, 0, len);
+            deflater.finish();
+            // anything that doesn't fit into less than the plain size isn't worth keeping
+            int compressedLen = deflater.deflate(out, 0, len - 1);
+            return deflater.finished() ? compressedLen : -1;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflates {@code data} into the first {@code len} bytes of {@code dst}.
+     */
+    void decompress(byte[] data, byte[] dst, int len) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(data);
+            int n = 0;
+            while (n < len) {
+                int inflated = inflater.inflate(dst, n, len - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Compressed chunk is truncated");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed chunk is corrupted", e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copies chunks into their place in a pre-sized array, splitting the chunk range in halves across the fork-join
+ * pool until a range is small enough to copy on one thread. Works on {@code char[]} as well as {@code byte[]}
+ * chunks, as {@link System#arraycopy} does.
+ */
+class ChunkCopyTask extends RecursiveAction {
+    static final int SEQUENTIAL_THRESHOLD = 256 * 1024;
+
+    // RecursiveAction is Serializable, though the tasks never leave the pool they run in
+    private static final long serialVersionUID = 1L;
+
+    private final Object[] chunks;
+    private final int[] offsets;
+    private final Object dst;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param chunks  the filled chunks
+     * @param offsets the offset of each chunk in {@code dst}, followed by the total length; the content of chunk
+     *                {@code i} ends where chunk {@code i + 1} starts
+     */
+    ChunkCopyTask(Object[] chunks, int[] offsets, Object dst) {
+        this(chunks, offsets, dst, 0, chunks.length);
+    }
+
+    private ChunkCopyTask(Object[] chunks, int[] offsets, Object dst, int from, int to) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+        this.dst = dst;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from < 2 || offsets[to] - offsets[from] <= SEQUENTIAL_THRESHOLD) {
+            for (int i = from; i < to; i++) {
+                System.arraycopy(chunks[i], 0, dst, offsets[i], offsets[i + 1] - offsets[i]);
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new ChunkCopyTask(chunks, offsets, dst, from, mid), new ChunkCopyTask(chunks, offsets, dst, mid, to));
+    }
+}
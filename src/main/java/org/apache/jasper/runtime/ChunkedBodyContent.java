@@ -0,0 +1,245 @@
+package org.apache.jasper.runtime;
+
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A {@link BodyContent} that writes straight into a {@link ChunkedBuffer}, so a large body is never re-doubled and
+ * recopied as it grows, and is read back and written out chunk by chunk. It can stand in for Jasper's
+ * {@code BodyContentImpl}; {@link ChunkedBodyContentStack} recycles instances per tag nesting depth like
+ * {@code PageContextImpl.pushBody()} does.
+ * <p>
+ * Like any {@link BodyContent} it is unbounded and may not be flushed.
+ */
+public class ChunkedBodyContent extends BodyContent {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /**
+     * Whether a body that grew beyond {@link #TAG_BUFFER_SIZE} gives its chunks up when it is cleared or recycled,
+     * rather than keeping them for the next body. The same switch as for Jasper's {@code BodyContentImpl}.
+     */
+    static final boolean LIMIT_BUFFER =
+            Boolean.parseBoolean(System.getProperty("org.apache.jasper.runtime.BodyContentImpl.LIMIT_BUFFER", "false"));
+    static final int TAG_BUFFER_SIZE =
+            Integer.getInteger("org.apache.jasper.runtime.BodyContentImpl.BUFFER_SIZE", 512);
+
+    private final ChunkedBuffer buffer;
+    private boolean closed;
+
+    public ChunkedBodyContent(JspWriter enclosingWriter) {
+        this(enclosingWriter, new ChunkedBuffer());
+    }
+
+    public ChunkedBodyContent(JspWriter enclosingWriter, ChunkedBuffer buffer) {
+        super(enclosingWriter);
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer: may not be null.");
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the buffer holding the body
+     */
+    public ChunkedBuffer getBuffer() {
+        return buffer;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        buffer.append((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        buffer.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String s, int off, int len) throws IOException {
+        ensureOpen();
+        buffer.append(s, off, len);
+    }
+
+    @Override
+    public void newLine() throws IOException {
+        write(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void print(boolean b) throws IOException {
+        write(b ? "true" : "false");
+    }
+
+    @Override
+    public void print(char c) throws IOException {
+        write(c);
+    }
+
+    @Override
+    public void print(int i) throws IOException {
+        print((long) i);
+    }
+
+    @Override
+    public void print(long l) throws IOException {
+        ensureOpen();
+        buffer.appendDecimal(l);
+    }
+
+    @Override
+    public void print(float f) throws IOException {
+        write(String.valueOf(f));
+    }
+
+    @Override
+    public void print(double d) throws IOException {
+        write(String.valueOf(d));
+    }
+
+    @Override
+    public void print(char[] s) throws IOException {
+        write(s);
+    }
+
+    @Override
+    public void print(String s) throws IOException {
+        write(s == null ? "null" : s);
+    }
+
+    @Override
+    public void print(Object obj) throws IOException {
+        write(String.valueOf(obj));
+    }
+
+    @Override
+    public void println() throws IOException {
+        newLine();
+    }
+
+    @Override
+    public void println(boolean x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(char x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(int x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(long x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(float x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(double x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(char[] x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(String x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    @Override
+    public void println(Object x) throws IOException {
+        print(x);
+        newLine();
+    }
+
+    /**
+     * Discards the body, keeping its chunks for the next one unless {@link #LIMIT_BUFFER} is set and they exceed
+     * {@link #TAG_BUFFER_SIZE}.
+     */
+    @Override
+    public void clear() throws IOException {
+        discard();
+    }
+
+    @Override
+    public void clearBuffer() throws IOException {
+        clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+    }
+
+    /**
+     * @return 0, as the body content is unbounded
+     */
+    @Override
+    public int getRemaining() {
+        return 0;
+    }
+
+    /**
+     * @return a reader over the body, reading the chunks in place
+     */
+    @Override
+    public Reader getReader() {
+        return buffer.getUnsynchronizedReader();
+    }
+
+    @Override
+    public String getString() {
+        return buffer.toString();
+    }
+
+    @Override
+    public void writeOut(Writer out) throws IOException {
+        buffer.writeOut(out);
+    }
+
+    /**
+     * Makes the instance ready to hold a new body.
+     */
+    void recycle() {
+        discard();
+        closed = false;
+    }
+
+    private void discard() {
+        if (LIMIT_BUFFER && buffer.capacity() > TAG_BUFFER_SIZE) {
+            buffer.clear();
+        } else {
+            buffer.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.apache.jasper.runtime;
+
+import javax.servlet.jsp.JspWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The body contents of nested tags for one page context, with the push and pop of
+ * {@code PageContext.pushBody()} and {@code popBody()}. The {@link ChunkedBodyContent} of each nesting depth is
+ * created once and recycled, chunks included, every time a tag at that depth pushes a body again.
+ * <p>
+ * Like the page context it belongs to, a stack is used by one thread at a time. There is no page context in this
+ * package: to replace the stock body contents, the {@code pushBody()} and {@code popBody()} of a page context
+ * delegate to a stack, and its {@code release()} to {@link #release()}.
+ */
+public class ChunkedBodyContentStack {
+    private final JspWriter out;
+    private final List<ChunkedBodyContent> contents = new ArrayList<ChunkedBodyContent>();
+    private int depth;
+
+    /**
+     * @param out the writer of the page, which the outermost body content encloses
+     */
+    public ChunkedBodyContentStack(JspWriter out) {
+        if (out == null) {
+            throw new IllegalArgumentException("out: may not be null.");
+        }
+        this.out = out;
+    }
+
+    /**
+     * @return the recycled body content for the next depth, now the current writer
+     */
+    public ChunkedBodyContent push() {
+        ChunkedBodyContent content;
+        if (depth < contents.size()) {
+            content = contents.get(depth);
+            content.recycle();
+        } else {
+            content = new ChunkedBodyContent(getWriter());
+            contents.add(content);
+        }
+        depth++;
+        return content;
+    }
+
+    /**
+     * @return the writer enclosing the body content popped, which is the current writer again
+     */
+    public JspWriter pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("No body content to pop");
+        }
+        depth--;
+        return getWriter();
+    }
+
+    /**
+     * @return the body content of the innermost tag, or the page writer when no body is pushed
+     */
+    public JspWriter getWriter() {
+        return depth == 0 ? out : contents.get(depth - 1);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Pops all body contents and lets go of their chunks, for instance when the page context is released.
+     */
+    public void release() {
+        depth = 0;
+        for (ChunkedBodyContent content : contents) {
+            content.getBuffer().clear();
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package org.apache.jasper.runtime;
 
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by IntelliJ IDEA.
@@ -12,15 +23,31 @@ import java.util.List;
  * Date: 3/17/14
  * Time: 3:49 PM
  */
-public class ChunkedBuffer extends Writer {
+public class ChunkedBuffer extends Writer implements Comparable<ChunkedBuffer>, Externalizable {
     public static final int DEFAULT_INITIAL_CAPACITY = 512;
     public static final double DEFAULT_GROWTH_FACTOR = 1.5;
     public static final int MIN_CHUNK_SIZE = 16;
     public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+    public static final int PARALLEL_COPY_THRESHOLD = 1024 * 1024;
 
-    private final int initialCapacity;
-    private final double growthFactor;
-    private final int maxChunkSize;
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] BASE64_URL_SAFE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L,
+        100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L, 10000000000000000L,
+        100000000000000000L, 1000000000000000000L
+    };
+
+    private static final long serialVersionUID = 1L;
+
+    // not final, readExternal() restores them
+    private int initialCapacity;
+    private double growthFactor;
+    private int maxChunkSize;
 
     private List<char[]> chunks;
 
@@ -31,6 +58,39 @@ public class ChunkedBuffer extends Writer {
     private int count;
     private int capacity;
 
+    // the memory manager reservation for the chunks, null when no manager was installed at construction
+    private BufferMemoryManager.Lease lease;
+
+    private int hash;
+    private int hashedChunkIdx;
+    private int hashedPos;
+    private int hashedCount;
+
+    private ContentDigest digest;
+    private int digestedChunkIdx;
+    private int digestedPos;
+    private int digestedCount;
+    // whether the digest got a '?' for a high surrogate at the end of the content digested so far
+    private boolean digestedLoneHighSurrogate;
+
+    // start offsets of the lines, built by the first line query and brought up to date by the following ones
+    private int[] lineStarts;
+    private int lineCount;
+    private int linesChunkIdx;
+    private int linesPos;
+    private int linesCount;
+
+    // the chunks when compression is enabled, chunks then refers to the same list
+    private CompressedChunkList<char[]> compressedChunks;
+
+    // state shared with concurrent readers, only maintained once getConcurrentReader() has been called
+    private boolean publishing;
+    private char[][] publishedChunks;
+    private int publishedChunkCount;
+    private volatile char[][] sharedChunks;
+    private volatile int sharedCount;
+    private volatile int generation;
+
     public ChunkedBuffer(String text) {
         this(DEFAULT_INITIAL_CAPACITY);
         append(text);
@@ -55,6 +115,23 @@ public class ChunkedBuffer extends Writer {
     }
 
     public ChunkedBuffer(int initialCapacity, int maxChunkSize, double growthFactor) {
+        configure(initialCapacity, maxChunkSize, growthFactor);
+
+        BufferMemoryManager manager = BufferMemoryManager.getGlobal();
+        if (manager != null) {
+            this.lease = manager.register(this);
+        }
+        growCapacity(initialCapacity);
+        this.chunks = new ArrayList<char[]>();
+        this.currentChunk = new char[initialCapacity];
+        this.chunks.add(this.currentChunk);
+        this.currentChunkIdx = 0;
+        this.posInCurrentChunk = 0;
+        this.count = 0;
+        resetHash();
+    }
+
+    private void configure(int initialCapacity, int maxChunkSize, double growthFactor) {
         if (initialCapacity <= 0) {
             throw new IllegalArgumentException("initialCapacity must be positive");
         }
@@ -67,21 +144,16 @@ public class ChunkedBuffer extends Writer {
         this.initialCapacity = initialCapacity;
         this.growthFactor = growthFactor;
         this.maxChunkSize = maxChunkSize;
-
-        this.chunks = new ArrayList<char[]>();
-        this.currentChunk = new char[initialCapacity];
-        this.chunks.add(this.currentChunk);
-        this.currentChunkIdx = 0;
-        this.posInCurrentChunk = 0;
-        this.count = 0;
-        this.capacity = initialCapacity;
     }
 
     public ChunkedBuffer append(char character) {
-        ensureCapacityInternal(count + 1);
-        ensureCurrentChunkHasCapacity();
+        ensureCanGrow(1);
+        ensureCurrentChunkHasCapacity(1);
         currentChunk[posInCurrentChunk++] = character;
         this.count++;
+        if (publishing) {
+            publish();
+        }
         return this;
     }
 
@@ -114,9 +186,16 @@ public class ChunkedBuffer extends Writer {
             throw new StringIndexOutOfBoundsException("length: specifies length in excess of array length.");
         }
 
-        ensureCapacityInternal(count + length);
+        copyIn(text, start, length);
+        if (publishing) {
+            publish();
+        }
+    }
+
+    private void copyIn(String text, int start, int length) {
+        ensureCanGrow(length);
         while (length > 0) {
-            int charsToCopy = ensureCurrentChunkHasCapacity();
+            int charsToCopy = ensureCurrentChunkHasCapacity(length);
             if (charsToCopy > length) {
                 charsToCopy = length;
             }
@@ -130,19 +209,103 @@ public class ChunkedBuffer extends Writer {
         }
     }
 
-    private int ensureCurrentChunkHasCapacity() {
-        int currentChunkCapacity = currentChunk.length - posInCurrentChunk;
-        if (currentChunkCapacity > 0) {
-            return currentChunkCapacity;
+    /**
+     * Makes room for at least one more char at {@code posInCurrentChunk}. When the current chunk is full the
+     * writer moves on to the next chunk, which is only allocated at this point (or reused if {@link #setLength(int)}
+     * left it behind).
+     *
+     * @param sizeHint the number of chars the caller is about to write
+     * @return the number of chars that can be written into {@code currentChunk}
+     */
+    private int ensureCurrentChunkHasCapacity(int sizeHint) {
+        return ensureCurrentChunkHasCapacity(sizeHint, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param sizeLimit the size above which a new chunk is only allocated if {@code sizeHint} asks for it
+     */
+    private int ensureCurrentChunkHasCapacity(int sizeHint, int sizeLimit) {
+        if (currentChunk != null) {
+            int currentChunkCapacity = currentChunk.length - posInCurrentChunk;
+            if (currentChunkCapacity > 0) {
+                return currentChunkCapacity;
+            }
+            if (digest != null) {
+                digestUpTo(currentChunkIdx, currentChunk.length);
+            }
+            if (compressedChunks != null && !publishing
+                    && capacity * 2L > compressedChunks.getCompression().getThreshold()) {
+                compressChunk(currentChunkIdx);
+            }
+        }
+        // go to the next chunk, getting hold of it first so the writer is left as it was when the memory budget
+        // is exceeded
+        int nextChunkIdx = currentChunkIdx + 1;
+        char[] nextChunk;
+        if (nextChunkIdx < chunks.size()) {
+            nextChunk = chunks.get(nextChunkIdx);
+        } else {
+            nextChunk = allocateChunk(sizeHint, sizeLimit);
+            chunks.add(nextChunk);
         }
-        // go to the next chunk
-        assert currentChunkIdx + 1 < chunks.size();
+        currentChunkIdx = nextChunkIdx;
+        currentChunk = nextChunk;
         posInCurrentChunk = 0;
-        currentChunkIdx++;
-        currentChunk = chunks.get(currentChunkIdx);
         return currentChunk.length;
     }
 
+    /**
+     * Allocates a chunk following the growth policy. A request larger than the next regular chunk gets a single
+     * chunk of exactly the requested size, so that a large append is copied in one go.
+     */
+    private char[] allocateChunk(int sizeHint) {
+        return allocateChunk(sizeHint, Integer.MAX_VALUE);
+    }
+
+    private char[] allocateChunk(int sizeHint, int sizeLimit) {
+        int size = Math.min(nextChunkSize(), sizeLimit);
+        if (sizeHint > size) {
+            size = sizeHint;
+        }
+        growCapacity(size);
+        return new char[size];
+    }
+
+    /**
+     * Accounts for a chunk of {@code size} chars about to be allocated, reserving its memory first if there is a
+     * memory manager.
+     */
+    private void growCapacity(int size) {
+        if (lease != null) {
+            lease.reserve(size * 2L);
+        }
+        this.capacity += size;
+    }
+
+    private void shrinkCapacity(int size) {
+        this.capacity -= size;
+        if (lease != null) {
+            lease.release(size * 2L);
+        }
+    }
+
+    private int nextChunkSize() {
+        int size = capacity == 0 ? this.initialCapacity : (int) (capacity * growthFactor) - capacity;
+        if (size < MIN_CHUNK_SIZE) {
+            size = MIN_CHUNK_SIZE;
+        }
+        if (size > maxChunkSize) {
+            size = maxChunkSize;
+        }
+        return size;
+    }
+
+    private void ensureCanGrow(int length) {
+        if (count + length < 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
     public void append(char[] characters, int start, int length) throws IllegalArgumentException {
         if (length <= 0) {
             return;
@@ -160,9 +323,16 @@ public class ChunkedBuffer extends Writer {
             throw new StringIndexOutOfBoundsException("length: specifies length in excess of array length.");
         }
 
-        ensureCapacityInternal(count + length);
+        copyIn(characters, start, length);
+        if (publishing) {
+            publish();
+        }
+    }
+
+    private void copyIn(char[] characters, int start, int length) {
+        ensureCanGrow(length);
         while (length > 0) {
-            int charsToCopy = ensureCurrentChunkHasCapacity();
+            int charsToCopy = ensureCurrentChunkHasCapacity(length);
             if (charsToCopy > length) {
                 charsToCopy = length;
             }
@@ -177,6 +347,408 @@ public class ChunkedBuffer extends Writer {
         }
     }
 
+    /**
+     * Appends {@code csq} without the {@code toString()} copy of {@link Writer#append(CharSequence)}: strings, string
+     * builders and char buffers are copied in bulk straight into the chunks.
+     */
+    @Override
+    public ChunkedBuffer append(CharSequence csq) {
+        if (csq == null) {
+            csq = "null";
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public ChunkedBuffer append(CharSequence csq, int start, int end) {
+        if (csq == null) {
+            csq = "null";
+        }
+        if (start < 0 || start > end || end > csq.length()) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + csq.length());
+        }
+        copyIn(csq, start, end - start);
+        if (publishing) {
+            publish();
+        }
+        return this;
+    }
+
+    private void copyIn(CharSequence csq, int start, int length) {
+        ensureCanGrow(length);
+        CharBuffer source = null;
+        if (csq instanceof CharBuffer && !((CharBuffer) csq).hasArray()) {
+            // relative bulk gets from a view, leaving the position of csq alone
+            source = ((CharBuffer) csq).duplicate();
+            source.position(source.position() + start);
+        }
+        while (length > 0) {
+            int charsToCopy = ensureCurrentChunkHasCapacity(length);
+            if (charsToCopy > length) {
+                charsToCopy = length;
+            }
+            if (source != null) {
+                source.get(currentChunk, posInCurrentChunk, charsToCopy);
+            } else {
+                getChars(csq, start, start + charsToCopy, currentChunk, posInCurrentChunk);
+            }
+            start += charsToCopy;
+            length -= charsToCopy;
+            this.posInCurrentChunk += charsToCopy;
+            this.count += charsToCopy;
+        }
+    }
+
+    private static void getChars(CharSequence csq, int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (csq instanceof String) {
+            ((String) csq).getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else if (csq instanceof StringBuilder) {
+            ((StringBuilder) csq).getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else if (csq instanceof StringBuffer) {
+            ((StringBuffer) csq).getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else if (csq instanceof CharBuffer) {
+            CharBuffer cb = (CharBuffer) csq;
+            System.arraycopy(cb.array(), cb.arrayOffset() + cb.position() + srcBegin, dst, dstBegin,
+                    srcEnd - srcBegin);
+        } else {
+            for (int i = srcBegin; i < srcEnd; i++) {
+                dst[dstBegin++] = csq.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * Appends a copy of the content of {@code source}, chunk by chunk. Unlike {@link #splice(ChunkedBuffer)} this
+     * leaves {@code source} as it is, and {@code source} may be this buffer. A {@link ChunkedBuffer} isn't a
+     * {@link CharSequence}, and an {@code append} overload would make {@code append(null)} ambiguous, hence the name.
+     */
+    public ChunkedBuffer appendBuffer(ChunkedBuffer source) throws IllegalArgumentException {
+        if (source == null) {
+            throw new IllegalArgumentException("source: may not be null.");
+        }
+        return appendBuffer(source, 0, source.count);
+    }
+
+    public ChunkedBuffer appendBuffer(ChunkedBuffer source, int start, int end) throws IllegalArgumentException {
+        if (source == null) {
+            throw new IllegalArgumentException("source: may not be null.");
+        }
+        if (start < 0 || start > end || end > source.count) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + source.count);
+        }
+        int length = end - start;
+        // the source chunks before end don't change, even when appending to the source itself
+        for (int i = 0; length > 0; i++) {
+            char[] chunk = source.chunks.get(i);
+            if (start >= chunk.length) {
+                start -= chunk.length;
+                continue;
+            }
+            int charsToCopy = Math.min(chunk.length - start, length);
+            copyIn(chunk, start, charsToCopy);
+            start = 0;
+            length -= charsToCopy;
+        }
+        if (publishing) {
+            publish();
+        }
+        return this;
+    }
+
+    /**
+     * Appends {@code format} with its placeholders replaced by {@code args}. Literal text is copied straight from the
+     * compiled format and integral numbers, chars, booleans and char sequences are written straight into the chunks,
+     * so nothing is allocated for them. Other arguments are appended as {@link String#valueOf(Object)} prints them.
+     *
+     * @throws IllegalArgumentException if there are fewer arguments than the format refers to
+     */
+    public void appendFormat(CompiledFormat format, Object... args) throws IllegalArgumentException {
+        checkArguments(format, args == null ? 0 : args.length);
+        for (int i = 0, n = format.segmentCount(); i < n; i++) {
+            int arg = format.argumentAt(i);
+            if (arg < 0) {
+                copyIn(format.text(), format.literalStart(i), format.literalLength(i));
+            } else {
+                appendArgument(args[arg]);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Same as {@link #appendFormat(CompiledFormat, Object...)} for an integral argument, without boxing it. This
+     * isn't an overload of {@code appendFormat}, as a char argument would silently widen to a number.
+     */
+    public void appendFormatLong(CompiledFormat format, long arg0) throws IllegalArgumentException {
+        checkArguments(format, 1);
+        for (int i = 0, n = format.segmentCount(); i < n; i++) {
+            if (format.argumentAt(i) < 0) {
+                copyIn(format.text(), format.literalStart(i), format.literalLength(i));
+            } else {
+                writeDecimal(arg0);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Same as {@link #appendFormat(CompiledFormat, Object...)}, without boxing the arguments.
+     */
+    public void appendFormatLong(CompiledFormat format, long arg0, long arg1) throws IllegalArgumentException {
+        checkArguments(format, 2);
+        for (int i = 0, n = format.segmentCount(); i < n; i++) {
+            int arg = format.argumentAt(i);
+            if (arg < 0) {
+                copyIn(format.text(), format.literalStart(i), format.literalLength(i));
+            } else {
+                writeDecimal(arg == 0 ? arg0 : arg1);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Same as {@link #appendFormat(CompiledFormat, Object...)}, without boxing the arguments.
+     */
+    public void appendFormatLong(CompiledFormat format, long arg0, long arg1, long arg2)
+            throws IllegalArgumentException {
+        checkArguments(format, 3);
+        for (int i = 0, n = format.segmentCount(); i < n; i++) {
+            int arg = format.argumentAt(i);
+            if (arg < 0) {
+                copyIn(format.text(), format.literalStart(i), format.literalLength(i));
+            } else {
+                writeDecimal(arg == 0 ? arg0 : arg == 1 ? arg1 : arg2);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    private static void checkArguments(CompiledFormat format, int argumentCount) {
+        if (format == null) {
+            throw new IllegalArgumentException("format: may not be null.");
+        }
+        if (format.getArgumentCount() > argumentCount) {
+            throw new IllegalArgumentException("format refers to " + format.getArgumentCount()
+                    + " arguments, " + argumentCount + " given");
+        }
+    }
+
+    private void appendArgument(Object arg) {
+        if (arg instanceof String) {
+            String text = (String) arg;
+            copyIn(text, 0, text.length());
+        } else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) {
+            writeDecimal(((Number) arg).longValue());
+        } else if (arg instanceof Character) {
+            ensureCanGrow(1);
+            appendInRun((Character) arg, 1);
+        } else if (arg instanceof Boolean) {
+            copyIn((Boolean) arg ? "true" : "false", 0, (Boolean) arg ? 4 : 5);
+        } else if (arg instanceof CharSequence) {
+            copyIn((CharSequence) arg, 0, ((CharSequence) arg).length());
+        } else {
+            String text = String.valueOf(arg);
+            copyIn(text, 0, text.length());
+        }
+    }
+
+    /**
+     * Appends {@code value} as {@link String#valueOf(long)} prints it, without the temporary string.
+     */
+    public void appendDecimal(long value) {
+        writeDecimal(value);
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Appends the decimal digits of {@code value}, most significant first, straight into the chunks.
+     */
+    private void writeDecimal(long value) {
+        // digits are taken from the negated value, which also covers Long.MIN_VALUE
+        long negated = value < 0 ? value : -value;
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && negated <= -POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        int remaining = value < 0 ? digits + 1 : digits;
+        ensureCanGrow(remaining);
+        if (value < 0) {
+            appendInRun('-', remaining--);
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            appendInRun((char) ('0' - negated / POWERS_OF_TEN[i] % 10), remaining--);
+        }
+    }
+
+    /**
+     * Appends the Base64 encoding of {@code src}, with the standard alphabet and padding, as used in data URIs.
+     */
+    public void appendBase64(ChunkedByteArray src) {
+        appendBase64(src, false);
+    }
+
+    /**
+     * Appends the Base64 encoding of {@code src}, encoding the bytes straight from its chunks into the chunks of
+     * this buffer; groups of 3 bytes split over two source chunks are carried over.
+     *
+     * @param urlSafe whether to use the URL and file name safe alphabet, without padding, rather than the standard
+     *                alphabet with padding
+     */
+    public void appendBase64(ChunkedByteArray src, boolean urlSafe) throws IllegalArgumentException {
+        if (src == null) {
+            throw new IllegalArgumentException("src: may not be null.");
+        }
+        char[] alphabet = urlSafe ? BASE64_URL_SAFE : BASE64;
+        int rest = src.length() % 3;
+        long encodedLength = src.length() / 3 * 4L + (rest == 0 ? 0 : urlSafe ? rest + 1 : 4);
+        if (encodedLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        int remaining = (int) encodedLength;
+        ensureCanGrow(remaining);
+        int group = 0;
+        int bytesInGroup = 0;
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            byte[] chunk = src.chunkAt(i);
+            for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                group = (group << 8) | (chunk[j] & 0xff);
+                if (++bytesInGroup == 3) {
+                    appendInRun(alphabet[group >> 18], remaining--);
+                    appendInRun(alphabet[(group >> 12) & 0x3f], remaining--);
+                    appendInRun(alphabet[(group >> 6) & 0x3f], remaining--);
+                    appendInRun(alphabet[group & 0x3f], remaining--);
+                    group = 0;
+                    bytesInGroup = 0;
+                }
+            }
+        }
+        if (bytesInGroup > 0) {
+            group <<= 8 * (3 - bytesInGroup);
+            appendInRun(alphabet[group >> 18], remaining--);
+            appendInRun(alphabet[(group >> 12) & 0x3f], remaining--);
+            if (bytesInGroup == 2) {
+                appendInRun(alphabet[(group >> 6) & 0x3f], remaining--);
+            }
+            while (remaining > 0) {
+                appendInRun('=', remaining--);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Appends the bytes of {@code src} as lower case hex digits.
+     */
+    public void appendHex(ChunkedByteArray src) {
+        appendHex(src, false);
+    }
+
+    /**
+     * Appends the bytes of {@code src} as hex digits, encoding them straight from its chunks into the chunks of
+     * this buffer.
+     */
+    public void appendHex(ChunkedByteArray src, boolean upperCase) throws IllegalArgumentException {
+        if (src == null) {
+            throw new IllegalArgumentException("src: may not be null.");
+        }
+        char[] digits = upperCase ? HEX_UPPER : HEX_LOWER;
+        if (src.length() > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException();
+        }
+        int remaining = src.length() * 2;
+        ensureCanGrow(remaining);
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            byte[] chunk = src.chunkAt(i);
+            for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                appendInRun(digits[(chunk[j] >> 4) & 0xf], remaining--);
+                appendInRun(digits[chunk[j] & 0xf], remaining--);
+            }
+        }
+        if (publishing) {
+            publish();
+        }
+    }
+
+    /**
+     * Appends a single char of a longer run, storing it straight into the current chunk.
+     *
+     * @param sizeHint the number of chars of the run still to be appended, this one included
+     */
+    private void appendInRun(char c, int sizeHint) {
+        if (currentChunk == null || posInCurrentChunk == currentChunk.length) {
+            ensureCurrentChunkHasCapacity(sizeHint);
+        }
+        currentChunk[posInCurrentChunk++] = c;
+        count++;
+    }
+
+    /**
+     * Moves the content of {@code source} to the end of this buffer and leaves {@code source} empty. The chunks of
+     * {@code source} are adopted as they are rather than copied; only the partially filled last chunk of this buffer
+     * is trimmed to its content so the adopted chunks can follow it. While concurrent readers are in use the content
+     * is copied instead, as published chunks must not change.
+     */
+    public void splice(ChunkedBuffer source) throws IllegalArgumentException {
+        if (source == null) {
+            throw new IllegalArgumentException("source: may not be null.");
+        }
+        if (source == this) {
+            throw new IllegalArgumentException("source: may not be this buffer.");
+        }
+        if (source.count == 0) {
+            return;
+        }
+        ensureCanGrow(source.count);
+        if (publishing) {
+            for (int i = 0; i < source.currentChunkIdx; i++) {
+                char[] chunk = source.chunks.get(i);
+                append(chunk, 0, chunk.length);
+            }
+            append(source.currentChunk, 0, source.posInCurrentChunk);
+            source.clear();
+            return;
+        }
+
+        trimToSize();
+        if (currentChunk != null && posInCurrentChunk < currentChunk.length) {
+            shrinkCapacity(currentChunk.length - posInCurrentChunk);
+            if (posInCurrentChunk == 0) {
+                chunks.remove(currentChunkIdx);
+                currentChunkIdx--;
+            } else {
+                currentChunk = Arrays.copyOf(currentChunk, posInCurrentChunk);
+                chunks.set(currentChunkIdx, currentChunk);
+            }
+        }
+        List<char[]> adopted = source.chunks.subList(0, source.currentChunkIdx + 1);
+        for (char[] chunk : adopted) {
+            capacity += chunk.length;
+            if (lease != null) {
+                // moved over from the source, which releases them when cleared below
+                lease.adopt(chunk.length * 2L);
+            }
+        }
+        chunks.addAll(adopted);
+        currentChunkIdx = chunks.size() - 1;
+        currentChunk = source.currentChunk;
+        posInCurrentChunk = source.posInCurrentChunk;
+        count += source.count;
+        source.clear();
+    }
+
     public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin)
     {
         if (srcBegin < 0)
@@ -227,6 +799,27 @@ public class ChunkedBuffer extends Writer {
         }
     }
 
+    /**
+     * Like {@link #toArray()}, but for content of at least {@link #PARALLEL_COPY_THRESHOLD} chars the chunks are
+     * copied into the result by {@code pool}, in parallel.
+     */
+    public char[] toArray(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool: may not be null.");
+        }
+        if (count < PARALLEL_COPY_THRESHOLD) {
+            return toArray();
+        }
+        int n = filledChunkCount();
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + filledLength(i);
+        }
+        char[] result = new char[count];
+        pool.invoke(new ChunkCopyTask(chunks.subList(0, n).toArray(), offsets, result));
+        return result;
+    }
+
     public char[] toArray() {
         char[] result = new char[count];
         if (count == 0) {
@@ -249,16 +842,242 @@ public class ChunkedBuffer extends Writer {
         if (count == 0) {
             return "";
         }
-        assert (currentChunk != null);
-        StringBuilder sb = new StringBuilder(length());
-        for (char[] chunk : this.chunks) {
-            if (chunk == currentChunk) {
+        return new String(toArray());
+    }
+
+    /**
+     * Like {@link #toString()}, with the chunks copied by {@link #toArray(ForkJoinPool)}.
+     */
+    public String toString(ForkJoinPool pool) {
+        if (count == 0) {
+            return "";
+        }
+        return new String(toArray(pool));
+    }
+
+    /**
+     * Compares the content with {@code cs} without materializing it, stopping at the first difference.
+     */
+    public boolean contentEquals(CharSequence cs) {
+        if (cs == null || cs.length() != count) {
+            return false;
+        }
+        int offset = 0;
+        for (int i = 0, n = filledChunkCount(); i < n; i++) {
+            char[] chunk = chunks.get(i);
+            for (int j = 0, len = filledLength(i); j < len; j++) {
+                if (chunk[j] != cs.charAt(offset++)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the content with the one of {@code other} without materializing either, walking both chunk lists
+     * side by side and stopping at the first difference.
+     */
+    public boolean contentEquals(ChunkedBuffer other) {
+        return other != null && other.count == count && compareContent(other) == 0;
+    }
+
+    /**
+     * Compares the content lexicographically, like {@link String#compareTo(String)}. This ordering is not consistent
+     * with {@code equals}, which is identity based.
+     */
+    public int compareTo(ChunkedBuffer other) {
+        return compareContent(other);
+    }
+
+    private int compareContent(ChunkedBuffer other) {
+        int n = filledChunkCount();
+        int otherN = other.filledChunkCount();
+        int i = 0, pos = 0, len = n > 0 ? filledLength(0) : 0;
+        int otherI = 0, otherPos = 0, otherLen = otherN > 0 ? other.filledLength(0) : 0;
+        while (true) {
+            if (pos == len) {
+                if (++i >= n) {
+                    break;
+                }
+                pos = 0;
+                len = filledLength(i);
+                continue;
+            }
+            if (otherPos == otherLen) {
+                if (++otherI >= otherN) {
+                    break;
+                }
+                otherPos = 0;
+                otherLen = other.filledLength(otherI);
+                continue;
+            }
+            char[] chunk = chunks.get(i);
+            char[] otherChunk = other.chunks.get(otherI);
+            int end = pos + Math.min(len - pos, otherLen - otherPos);
+            for (; pos < end; pos++, otherPos++) {
+                if (chunk[pos] != otherChunk[otherPos]) {
+                    return chunk[pos] - otherChunk[otherPos];
+                }
+            }
+        }
+        return count - other.count;
+    }
+
+    /**
+     * Returns a hash code of the content, the same value as {@code toString().hashCode()}. It is computed
+     * incrementally: only what was appended since the previous call is hashed, unless the content was truncated in
+     * between. {@code hashCode()} itself stays identity based, so buffers can still be used as keys while they are
+     * written to.
+     */
+    public int contentHashCode() {
+        if (count > 0) {
+            int chunkIdx = currentChunkIdx;
+            int pos = posInCurrentChunk;
+            if (chunkIdx < hashedChunkIdx) {
+                return hash;
+            }
+            int h = hash;
+            while (hashedChunkIdx <= chunkIdx) {
+                char[] chunk = chunks.get(hashedChunkIdx);
+                int end = hashedChunkIdx < chunkIdx ? chunk.length : pos;
+                for (int j = hashedPos; j < end; j++) {
+                    h = 31 * h + chunk[j];
+                }
+                hashedCount += end - hashedPos;
+                hashedPos = end;
+                if (hashedChunkIdx == chunkIdx) {
+                    break;
+                }
+                hashedChunkIdx++;
+                hashedPos = 0;
+            }
+            hash = h;
+        }
+        return hash;
+    }
+
+    private void resetHash() {
+        hash = 0;
+        hashedChunkIdx = 0;
+        hashedPos = 0;
+        hashedCount = 0;
+    }
+
+    /**
+     * Returns the number of lines, a line ending after each {@code '\n'}; content that doesn't end with one has a
+     * last line without it, and an empty buffer has a single empty line.
+     * <p>
+     * The first line query indexes the line starts; later ones only index what was appended since, unless the
+     * content was truncated in between, in which case just the lines after the cut are dropped.
+     */
+    public int lineCount() {
+        updateLineIndex();
+        return lineCount;
+    }
+
+    /**
+     * @param offset an offset in the content, up to and including its length
+     * @return the 0-based line holding the char at {@code offset}
+     */
+    public int lineOf(int offset) {
+        if (offset < 0 || offset > count) {
+            throw new StringIndexOutOfBoundsException(offset);
+        }
+        updateLineIndex();
+        int line = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    /**
+     * @return the offset of the first char of the 0-based {@code line}, so that the column of an offset is its
+     * distance to the start of {@link #lineOf(int) its line}
+     */
+    public int lineStart(int line) {
+        updateLineIndex();
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("line: " + line);
+        }
+        return lineStarts[line];
+    }
+
+    /**
+     * Appends the 0-based {@code line} to {@code out} straight from the chunks, without its {@code '\n'} or
+     * {@code "\r\n"} terminator.
+     */
+    public void getLine(int line, Appendable out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("out: may not be null.");
+        }
+        int start = lineStart(line);
+        int end = line + 1 < lineCount ? lineStarts[line + 1] - 1 : count;
+        if (start >= end) {
+            return;
+        }
+        int idx = 0;
+        int chunkStart = 0;
+        while (start >= chunkStart + chunks.get(idx).length) {
+            chunkStart += chunks.get(idx++).length;
+        }
+        // drop the '\r' of a "\r\n", which may be at the start of a chunk
+        int last = end - 1;
+        int lastIdx = idx;
+        int lastChunkStart = chunkStart;
+        while (last >= lastChunkStart + chunks.get(lastIdx).length) {
+            lastChunkStart += chunks.get(lastIdx++).length;
+        }
+        if (line + 1 < lineCount && chunks.get(lastIdx)[last - lastChunkStart] == '\r') {
+            end--;
+        }
+        while (start < end) {
+            char[] chunk = chunks.get(idx);
+            int from = start - chunkStart;
+            int len = Math.min(chunk.length - from, end - start);
+            if (out instanceof Writer) {
+                ((Writer) out).write(chunk, from, len);
+            } else if (out instanceof StringBuilder) {
+                ((StringBuilder) out).append(chunk, from, len);
+            } else {
+                out.append(CharBuffer.wrap(chunk, from, len));
+            }
+            start += len;
+            chunkStart += chunk.length;
+            idx++;
+        }
+    }
+
+    private void updateLineIndex() {
+        if (lineStarts == null) {
+            lineStarts = new int[16];
+            lineCount = 1;
+            linesChunkIdx = 0;
+            linesPos = 0;
+            linesCount = 0;
+        }
+        if (count == 0 || currentChunkIdx < linesChunkIdx) {
+            return;
+        }
+        int chunkStart = linesCount - linesPos;
+        while (linesChunkIdx <= currentChunkIdx) {
+            char[] chunk = chunks.get(linesChunkIdx);
+            int end = linesChunkIdx < currentChunkIdx ? chunk.length : posInCurrentChunk;
+            for (int j = linesPos; j < end; j++) {
+                if (chunk[j] == '\n') {
+                    if (lineCount == lineStarts.length) {
+                        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                    }
+                    lineStarts[lineCount++] = chunkStart + j + 1;
+                }
+            }
+            linesCount += end - linesPos;
+            linesPos = end;
+            if (linesChunkIdx == currentChunkIdx) {
                 break;
             }
-            sb.append(chunk);
+            chunkStart += chunk.length;
+            linesChunkIdx++;
+            linesPos = 0;
         }
-        sb.append(currentChunk, 0, posInCurrentChunk);
-        return sb.toString();
     }
 
     public int capacity() {
@@ -270,10 +1089,26 @@ public class ChunkedBuffer extends Writer {
     }
 
     public void clear() {
+        resetHash();
+        lineStarts = null;
+        if (digest != null) {
+            restartDigest();
+        }
+        if (publishing) {
+            publishedChunks = new char[publishedChunks.length][];
+            publishedChunkCount = 0;
+            generation++;
+            sharedChunks = publishedChunks;
+            sharedCount = 0;
+        }
+        if (compressedChunks != null && lease != null) {
+            // released when the chunks were compressed
+            lease.adopt(compressedChunks.getSavedBytes());
+        }
         chunks.clear();
         currentChunk = null;
         currentChunkIdx = -1;
-        capacity = 0;
+        shrinkCapacity(capacity);
         count = 0;
         posInCurrentChunk = 0;
     }
@@ -282,56 +1117,386 @@ public class ChunkedBuffer extends Writer {
         if (newLength < 0)
             throw new IllegalArgumentException();
         ensureCapacityInternal(newLength);
-        this.count = newLength;
+        int chunkIdx = -1;
+        char[] chunk = null;
+        int pos = newLength;
         for (int i = 0, chunks1Size = this.chunks.size(); i < chunks1Size; i++) {
-            char[] chunk = this.chunks.get(i);
-            this.currentChunk = chunk;
-            this.posInCurrentChunk = newLength;
-            this.currentChunkIdx = i;
-            if (chunk.length >= newLength) {
+            chunk = this.chunks.get(i);
+            chunkIdx = i;
+            if (chunk.length >= pos) {
                 break;
             }
-            newLength -= chunk.length;
+            pos -= chunk.length;
+        }
+        if (compressedChunks != null && chunkIdx >= 0) {
+            // writing continues in chunks that may have been compressed; they are thawed before anything changes,
+            // so a thaw that doesn't fit the memory budget leaves the buffer as it was
+            thawChunksFrom(chunkIdx);
+            chunk = chunks.get(chunkIdx);
+        }
+        this.count = newLength;
+        if (chunkIdx >= 0) {
+            this.currentChunk = chunk;
+            this.posInCurrentChunk = pos;
+            this.currentChunkIdx = chunkIdx;
+        }
+        if (this.count < hashedCount) {
+            resetHash();
+        }
+        if (digest != null && this.count < digestedCount) {
+            restartDigest();
+        }
+        if (lineStarts != null && this.count < linesCount) {
+            // keep the lines before the cut, a line starting right at it included
+            while (lineCount > 1 && lineStarts[lineCount - 1] > this.count) {
+                lineCount--;
+            }
+            linesChunkIdx = Math.max(currentChunkIdx, 0);
+            linesPos = posInCurrentChunk;
+            linesCount = this.count;
+        }
+        if (publishing) {
+            if (this.count < sharedCount) {
+                detachTruncatedChunks();
+            }
+            publish();
         }
     }
 
     public void trimToSize() {
-        chunks.subList(currentChunkIdx + 1, chunks.size()).clear();
+        List<char[]> unused = chunks.subList(currentChunkIdx + 1, chunks.size());
+        for (char[] chunk : unused) {
+            shrinkCapacity(chunk.length);
+        }
+        unused.clear();
     }
 
+    /**
+     * Makes sure the chunks can hold {@code newCapacity} chars. Appends allocate their chunks lazily, so this is
+     * only needed by {@link #setLength(int)}; any shortfall is covered by a single chunk.
+     */
     private void ensureCapacityInternal(int newCapacity) {
         if (newCapacity < 0)
             throw new IllegalArgumentException();
-        while (newCapacity > this.capacity) {
-            // allocate a new chunk
-            int size = capacity == 0 ? this.initialCapacity : (int) (capacity * growthFactor) - capacity;
-            if (size < MIN_CHUNK_SIZE) {
-                size = MIN_CHUNK_SIZE;
+        if (newCapacity > this.capacity) {
+            this.chunks.add(allocateChunk(newCapacity - this.capacity));
+        }
+    }
+
+    /**
+     * Starts maintaining {@code digest} over the UTF-8 encoding of its content, or stops when it is null. The digest is
+     * reset and brought up to date with the current content; from then on every chunk is fed to it as soon as the
+     * writer has filled it, and {@link #getDigest()} only has to add the partially filled last chunk.
+     */
+    public void trackDigest(ContentDigest digest) {
+        this.digest = digest;
+        if (digest != null) {
+            restartDigest();
+        }
+    }
+
+    /**
+     * @return the digest of the current content, as maintained since {@link #trackDigest(ContentDigest)}
+     */
+    public byte[] getDigest() {
+        if (digest == null) {
+            throw new IllegalStateException("No digest is being tracked");
+        }
+        if (count > 0) {
+            digestUpTo(currentChunkIdx, posInCurrentChunk);
+        }
+        if (!digest.hasPendingHighSurrogate()) {
+            return digest.value();
+        }
+        // the content ends with a lone high surrogate, digest it as '?'; only a low surrogate appended next makes
+        // the digest start over
+        digest.finishPendingHighSurrogate();
+        digestedLoneHighSurrogate = true;
+        return digest.value();
+    }
+
+    private void restartDigest() {
+        digest.reset();
+        digestedLoneHighSurrogate = false;
+        digestedChunkIdx = 0;
+        digestedPos = 0;
+        digestedCount = 0;
+    }
+
+    /**
+     * Feeds the content up to {@code pos} in the chunk at {@code chunkIdx} to the digest. All chunks before the
+     * current one are full, so the content between what was digested and that position is contiguous.
+     */
+    private void digestUpTo(int chunkIdx, int pos) {
+        if (chunkIdx < digestedChunkIdx) {
+            // the end of the previous chunk, which is where the digest is at
+            return;
+        }
+        if (digestedLoneHighSurrogate && (chunkIdx > digestedChunkIdx || pos > digestedPos)) {
+            digestedLoneHighSurrogate = false;
+            char[] chunk = chunks.get(digestedChunkIdx);
+            char next = digestedPos < chunk.length ? chunk[digestedPos] : chunks.get(digestedChunkIdx + 1)[0];
+            if (Character.isLowSurrogate(next)) {
+                // the high surrogate wasn't lone after all
+                restartDigest();
             }
-            if (size > maxChunkSize) {
-                size = maxChunkSize;
+        }
+        while (digestedChunkIdx < chunkIdx) {
+            char[] chunk = chunks.get(digestedChunkIdx);
+            digest.updateUtf8(chunk, digestedPos, chunk.length - digestedPos);
+            digestedCount += chunk.length - digestedPos;
+            digestedChunkIdx++;
+            digestedPos = 0;
+        }
+        if (pos > digestedPos) {
+            digest.updateUtf8(chunks.get(chunkIdx), digestedPos, pos - digestedPos);
+            digestedCount += pos - digestedPos;
+            digestedPos = pos;
+        }
+    }
+
+    /**
+     * Turns in-memory compression of sealed chunks on, or off when {@code compression} is null, in which case the
+     * compressed chunks are inflated again. Compression is suspended while concurrent readers are in use, as they
+     * hold on to the published chunks.
+     */
+    public void setChunkCompression(ChunkCompression compression) {
+        if (compressedChunks != null) {
+            if (compressedChunks.getCompression() == compression) {
+                return;
             }
-            this.chunks.add(new char[size]);
-            this.capacity += size;
+            thawChunksFrom(0);
+            chunks = new ArrayList<char[]>(compressedChunks);
+            compressedChunks = null;
         }
-        if (currentChunk == null && chunks.size() > 0) {
-            currentChunkIdx = 0;
-            currentChunk = chunks.get(0);
-            posInCurrentChunk = 0;
-            count = 0;
+        if (compression != null) {
+            compressedChunks = new CompressedChunkList<char[]>(compression, true, chunks);
+            chunks = compressedChunks;
+        }
+        if (currentChunkIdx >= 0) {
+            currentChunk = chunks.get(currentChunkIdx);
+        }
+    }
+
+    public ChunkCompression getChunkCompression() {
+        return compressedChunks == null ? null : compressedChunks.getCompression();
+    }
+
+    /**
+     * Compresses the chunks before the one being written to that aren't compressed yet. Meant to be called when the
+     * buffer is done with, or hasn't been written to for a while.
+     *
+     * @return the number of bytes saved
+     * @throws IllegalStateException if compression isn't enabled
+     */
+    public long compressSealedChunks() throws IllegalStateException {
+        if (compressedChunks == null) {
+            throw new IllegalStateException("Chunk compression is not enabled");
+        }
+        if (publishing) {
+            return 0;
+        }
+        long saved = 0;
+        for (int i = 0; i < currentChunkIdx; i++) {
+            saved += compressChunk(i);
+        }
+        return saved;
+    }
+
+    private long compressChunk(int idx) {
+        long saved = compressedChunks.compress(idx);
+        if (lease != null) {
+            lease.release(saved);
+        }
+        return saved;
+    }
+
+    /**
+     * Turns the chunks from {@code idx} on back into plain ones. The memory they grow by was given back when they
+     * were compressed, so it is reserved again first, failing or blocking like any other growth.
+     */
+    private void thawChunksFrom(int idx) {
+        if (lease != null) {
+            lease.reserve(compressedChunks.thawCost(idx));
         }
+        compressedChunks.thawFrom(idx);
     }
 
     public int getUnused() {
-        int sz = currentChunk.length - posInCurrentChunk;
+        int sz = currentChunk == null ? 0 : currentChunk.length - posInCurrentChunk;
         for (int i = currentChunkIdx + 1, chunksSize = chunks.size(); i < chunksSize; i++) {
             sz += chunks.get(i).length;
         }
         return sz;
     }
 
+    /**
+     * Makes the chars appended so far visible to concurrent readers. Chunks are added to {@code publishedChunks}
+     * before the volatile write of {@code sharedCount}, so a reader that sees a count also sees the chunks and the
+     * chars it covers.
+     */
+    private void publish() {
+        if (publishedChunkCount <= currentChunkIdx) {
+            if (publishedChunks.length <= currentChunkIdx) {
+                int newLength = Math.max(currentChunkIdx + 1, publishedChunks.length * 2);
+                publishedChunks = Arrays.copyOf(publishedChunks, newLength);
+                sharedChunks = publishedChunks;
+            }
+            while (publishedChunkCount <= currentChunkIdx) {
+                publishedChunks[publishedChunkCount] = chunks.get(publishedChunkCount);
+                publishedChunkCount++;
+            }
+        }
+        sharedCount = count;
+    }
+
+    /**
+     * Published chars are never overwritten: when the buffer is truncated below what readers may have seen, the
+     * current chunk is replaced by a copy and the chunks after it are dropped instead of being reused.
+     */
+    private void detachTruncatedChunks() {
+        trimToSize();
+        if (currentChunk != null) {
+            currentChunk = Arrays.copyOf(currentChunk, currentChunk.length);
+            chunks.set(currentChunkIdx, currentChunk);
+        }
+        publishedChunks = Arrays.copyOf(publishedChunks, publishedChunks.length);
+        publishedChunkCount = currentChunkIdx;
+        generation++;
+        sharedChunks = publishedChunks;
+    }
+
+    /**
+     * Returns a reader that may be used by another thread while this buffer is being appended to. It reads the chars
+     * published by the time it runs out of data, without any locking: when it has consumed them it checks for newly
+     * appended chars, and only reports the end of the stream when there are none. A reader that has reached the end
+     * may be read again later to pick up what was appended since. If the buffer was cleared or truncated below what
+     * the reader may have seen, the reader fails with an {@code IOException}.
+     * <p>
+     * Any number of such readers may be used, each by a single thread. Once this method has been called the buffer
+     * publishes its length after every append, so it must be called by the writing thread, or before the buffer is
+     * shared.
+     */
+    public Reader getConcurrentReader() {
+        if (!publishing) {
+            publishing = true;
+            publishedChunks = new char[Math.max(chunks.size(), 8)][];
+            publishedChunkCount = 0;
+            sharedChunks = publishedChunks;
+            publish();
+        }
+        return new ConcurrentChunkedBufferReader(this);
+    }
+
+    // chunk level access for the codecs in this package
+
+    /**
+     * @return the number of chunks holding content
+     */
+    int filledChunkCount() {
+        return count == 0 ? 0 : currentChunkIdx + 1;
+    }
+
+    char[] chunkAt(int idx) {
+        return chunks.get(idx);
+    }
+
+    /**
+     * @return the number of chars of content in the chunk at {@code idx}
+     */
+    int filledLength(int idx) {
+        return idx < currentChunkIdx ? chunks.get(idx).length : posInCurrentChunk;
+    }
+
+    /**
+     * Makes room for writing straight into {@link #writableChunk()} at {@link #writablePos()}; the chars written
+     * there become content through {@link #commit(int)}.
+     *
+     * @return the number of chars that can be written into the writable chunk
+     */
+    int ensureWritable(int sizeHint) {
+        ensureCanGrow(1);
+        return ensureCurrentChunkHasCapacity(sizeHint);
+    }
+
+    /**
+     * Like {@link #ensureWritable(int)}, but a new chunk is no larger than {@code sizeLimit} (or {@code sizeHint} if
+     * that is larger), for a reader that knows how much is left and shouldn't trust the configuration it was given.
+     */
+    int ensureWritable(int sizeHint, int sizeLimit) {
+        ensureCanGrow(1);
+        return ensureCurrentChunkHasCapacity(sizeHint, sizeLimit);
+    }
+
+    char[] writableChunk() {
+        return currentChunk;
+    }
+
+    int writablePos() {
+        return posInCurrentChunk;
+    }
+
+    void commit(int length) {
+        ensureCanGrow(length);
+        posInCurrentChunk += length;
+        count += length;
+        if (publishing) {
+            publish();
+        }
+    }
+
+    int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /**
+     * Empties this buffer and switches it to the given chunk configuration.
+     */
+    void reset(int initialCapacity, int maxChunkSize, double growthFactor) {
+        configure(initialCapacity, maxChunkSize, growthFactor);
+        clear();
+    }
+
+    /**
+     * Writes the configuration and content in the format of {@link ChunkedCodec}.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ChunkedCodec.write(this, out);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        ChunkedCodec.readInto(in, this);
+    }
+
+    /**
+     * @return a spliterator over the chars, which splits on chunk boundaries for parallel processing
+     */
+    public Spliterator.OfInt spliterator() {
+        int n = filledChunkCount();
+        char[][] filled = chunks.subList(0, n).toArray(new char[n][]);
+        return new ChunkedCharSpliterator(filled, n == 0 ? 0 : filledLength(n - 1), 0, 0, n, count);
+    }
+
+    /**
+     * @return a stream of the chars, which can be made {@link IntStream#parallel() parallel}
+     */
+    public IntStream chars() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /**
+     * @return a reader over the current content that can be shared between threads
+     */
     public Reader getReader() {
-        return new ChunkedBufferReader(chunks, count);
+        return new ChunkedBufferReader(chunks, count, new ReentrantLock());
     }
 
     public void writeOut(Writer writer) throws IOException, IllegalArgumentException {
@@ -351,11 +1516,24 @@ public class ChunkedBuffer extends Writer {
         writer.write(currentChunk, 0, posInCurrentChunk);
     }
 
-    @SuppressWarnings("SynchronizeOnNonFinalField")
+    /**
+     * A reader confined to a single thread. Unlike the one from {@link #getReader()} it takes no lock at all, so it
+     * must not be shared between threads.
+     */
+    public Reader getUnsynchronizedReader() {
+        return new ChunkedBufferReader(chunks, count, null);
+    }
+
+    /**
+     * Reads the chunks of a buffer. Shared readers use a {@link ReentrantLock} rather than the {@code synchronized}
+     * of {@link Reader}, so a virtual thread that blocks in {@code transferTo} while holding it doesn't pin its
+     * carrier thread; unsynchronized readers have no lock.
+     */
     private static class ChunkedBufferReader extends Reader {
 
         private final List<char[]> chunks;
         private final int count;
+        private final ReentrantLock readLock;
         private int pos = 0;
 
         private char[] currentChunk;
@@ -367,13 +1545,26 @@ public class ChunkedBuffer extends Writer {
         private int markedPos = 0;
         private int markedPosInCurrentChunk = 0;
 
-        private ChunkedBufferReader(List<char[]> chunks, int count) {
+        private ChunkedBufferReader(List<char[]> chunks, int count, ReentrantLock readLock) {
             this.chunks = chunks;
             this.count = count;
+            this.readLock = readLock;
             markedChunkIdx = currentChunkIdx = chunks.size() == 0 ? -1 : 0;
             markedChunk = currentChunk = chunks.size() == 0 ? null : chunks.get(0);
         }
 
+        private void lock() {
+            if (readLock != null) {
+                readLock.lock();
+            }
+        }
+
+        private void unlock() {
+            if (readLock != null) {
+                readLock.unlock();
+            }
+        }
+
         private void ensureOpen() throws IOException {
             if (currentChunk == null) {
                 throw new IOException("Stream closed");
@@ -381,7 +1572,8 @@ public class ChunkedBuffer extends Writer {
         }
 
         public int read() throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 if (pos >= count) {
                     return -1;
@@ -389,6 +1581,8 @@ public class ChunkedBuffer extends Writer {
                 gotoNextReadableChunk();
                 pos++;
                 return currentChunk[posInCurrentChunk++];
+            } finally {
+                unlock();
             }
         }
 
@@ -405,7 +1599,8 @@ public class ChunkedBuffer extends Writer {
 
         @Override
         public int read(char[] cbuf, int off, int len) throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 if ((off < 0) || (off > cbuf.length) || (len < 0) ||
                     ((off + len) > cbuf.length) || ((off + len) < 0)) {
@@ -438,11 +1633,14 @@ public class ChunkedBuffer extends Writer {
                     }
                 }
                 return len;
+            } finally {
+                unlock();
             }
         }
 
         public long skip(long n) throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 if (pos + n > count) {
                     n = count - pos;
@@ -459,18 +1657,75 @@ public class ChunkedBuffer extends Writer {
                     }
                     if (charsToAdvance > 0) {
                         remaining -= charsToAdvance;
-                        this.posInCurrentChunk += remaining;
-                        this.pos += remaining;
+                        this.posInCurrentChunk += charsToAdvance;
+                        this.pos += charsToAdvance;
                     }
                 }
                 return n;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Reads straight from the chunks into {@code target}, without an intermediate array.
+         */
+        @Override
+        public int read(CharBuffer target) throws IOException {
+            lock();
+            try {
+                ensureOpen();
+                if (pos >= count) {
+                    return -1;
+                }
+                int len = Math.min(target.remaining(), count - pos);
+                int remaining = len;
+                while (remaining > 0) {
+                    int charsToCopy = Math.min(gotoNextReadableChunk(), remaining);
+                    target.put(currentChunk, posInCurrentChunk, charsToCopy);
+                    remaining -= charsToCopy;
+                    this.posInCurrentChunk += charsToCopy;
+                    this.pos += charsToCopy;
+                }
+                return len;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Writes the rest of the content to {@code out}, handing it each chunk as it is.
+         *
+         * @return the number of chars transferred
+         */
+        public long transferTo(Writer out) throws IOException {
+            if (out == null) {
+                throw new NullPointerException("out");
+            }
+            lock();
+            try {
+                ensureOpen();
+                long transferred = 0;
+                while (pos < count) {
+                    int charsToCopy = Math.min(gotoNextReadableChunk(), count - pos);
+                    out.write(currentChunk, posInCurrentChunk, charsToCopy);
+                    transferred += charsToCopy;
+                    this.posInCurrentChunk += charsToCopy;
+                    this.pos += charsToCopy;
+                }
+                return transferred;
+            } finally {
+                unlock();
             }
         }
 
         public boolean ready() throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 return (count - pos) > 0;
+            } finally {
+                unlock();
             }
         }
 
@@ -479,22 +1734,28 @@ public class ChunkedBuffer extends Writer {
         }
 
         public void mark(int readAheadLimit) throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 markedPos = pos;
                 markedPosInCurrentChunk = posInCurrentChunk;
                 markedChunk = currentChunk;
                 markedChunkIdx = currentChunkIdx;
+            } finally {
+                unlock();
             }
         }
 
         public void reset() throws IOException {
-            synchronized (lock) {
+            lock();
+            try {
                 ensureOpen();
                 pos = markedPos;
                 posInCurrentChunk = markedPosInCurrentChunk;
                 currentChunk = markedChunk;
                 currentChunkIdx = markedChunkIdx;
+            } finally {
+                unlock();
             }
         }
 
@@ -504,4 +1765,201 @@ public class ChunkedBuffer extends Writer {
             currentChunk = null;
         }
     }
+
+    private static class ConcurrentChunkedBufferReader extends Reader {
+        private final ChunkedBuffer buffer;
+        private final int generation;
+        private boolean closed;
+
+        private char[][] chunks;
+        private int count;
+        private int pos = 0;
+
+        private char[] currentChunk;
+        private int currentChunkIdx = 0;
+        private int posInCurrentChunk = 0;
+
+        private ConcurrentChunkedBufferReader(ChunkedBuffer buffer) {
+            this.buffer = buffer;
+            this.generation = buffer.generation;
+            poll();
+        }
+
+        private boolean poll() {
+            int newCount = buffer.sharedCount;
+            char[][] newChunks = buffer.sharedChunks;
+            if (buffer.generation != generation) {
+                return false;
+            }
+            count = newCount;
+            chunks = newChunks;
+            return true;
+        }
+
+        /**
+         * @return the number of chars that can be read from {@code currentChunk}, or 0 at the end of the stream
+         */
+        private int gotoNextReadableChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (pos >= count) {
+                if (!poll()) {
+                    throw new IOException("Buffer was truncated");
+                }
+                if (pos >= count) {
+                    return 0;
+                }
+            }
+            if (currentChunk == null) {
+                currentChunk = chunks[currentChunkIdx];
+            }
+            int availableChars = currentChunk.length - posInCurrentChunk;
+            if (availableChars <= 0) {
+                currentChunkIdx++;
+                currentChunk = chunks[currentChunkIdx];
+                posInCurrentChunk = 0;
+                availableChars = currentChunk.length;
+            }
+            if (availableChars > count - pos) {
+                availableChars = count - pos;
+            }
+            return availableChars;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (gotoNextReadableChunk() == 0) {
+                return -1;
+            }
+            pos++;
+            return currentChunk[posInCurrentChunk++];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if ((off < 0) || (off > cbuf.length) || (len < 0) ||
+                ((off + len) > cbuf.length) || ((off + len) < 0)) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < len) {
+                int charsToCopy = gotoNextReadableChunk();
+                if (charsToCopy == 0) {
+                    break;
+                }
+                if (charsToCopy > len - read) {
+                    charsToCopy = len - read;
+                }
+                System.arraycopy(currentChunk, posInCurrentChunk, cbuf, off + read, charsToCopy);
+                read += charsToCopy;
+                posInCurrentChunk += charsToCopy;
+                pos += charsToCopy;
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return pos < count || pos < buffer.sharedCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    /**
+     * Splits a snapshot of the filled chunks on chunk boundaries, each half getting about the same number of
+     * chars. The content must not be truncated or cleared while the spliterator is in use.
+     */
+    private static class ChunkedCharSpliterator implements Spliterator.OfInt {
+        private final char[][] chunks;
+        private final int lastChunkLength;
+        private int chunkIdx;
+        private int pos;
+        private final int fence;
+        private long remaining;
+
+        private ChunkedCharSpliterator(char[][] chunks, int lastChunkLength, int chunkIdx, int pos, int fence,
+                                       long remaining) {
+            this.chunks = chunks;
+            this.lastChunkLength = lastChunkLength;
+            this.chunkIdx = chunkIdx;
+            this.pos = pos;
+            this.fence = fence;
+            this.remaining = remaining;
+        }
+
+        private int filledLength(int idx) {
+            return idx == chunks.length - 1 ? lastChunkLength : chunks[idx].length;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            while (chunkIdx < fence) {
+                if (pos < filledLength(chunkIdx)) {
+                    remaining--;
+                    action.accept(chunks[chunkIdx][pos++]);
+                    return true;
+                }
+                chunkIdx++;
+                pos = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            for (; chunkIdx < fence; chunkIdx++, pos = 0) {
+                char[] chunk = chunks[chunkIdx];
+                for (int end = filledLength(chunkIdx); pos < end; pos++) {
+                    action.accept(chunk[pos]);
+                }
+            }
+            remaining = 0;
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            if (fence - chunkIdx < 2) {
+                return null;
+            }
+            // hand out the chunks that bring the prefix closest to half of what is left
+            int splitIdx = chunkIdx;
+            long prefix = filledLength(splitIdx) - pos;
+            while (splitIdx + 2 < fence && 2 * prefix + filledLength(splitIdx + 1) < remaining) {
+                splitIdx++;
+                prefix += filledLength(splitIdx);
+            }
+            ChunkedCharSpliterator head = new ChunkedCharSpliterator(chunks, lastChunkLength, chunkIdx, pos,
+                    splitIdx + 1, prefix);
+            chunkIdx = splitIdx + 1;
+            pos = 0;
+            remaining -= prefix;
+            return head;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
 }
@@ -1,10 +1,24 @@
 package org.apache.jasper.runtime;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.Externalizable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.OutputStream;
+import java.io.UTFDataFormatException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by IntelliJ IDEA.
@@ -12,15 +26,32 @@ import java.util.List;
  * Date: 3/17/14
  * Time: 3:49 PM
  */
-public class ChunkedByteArray extends OutputStream {
+public class ChunkedByteArray extends OutputStream implements DataOutput, Comparable<ChunkedByteArray>, Externalizable {
     public static final int DEFAULT_INITIAL_CAPACITY = 512;
     public static final double DEFAULT_GROWTH_FACTOR = 1.5;
     public static final int MIN_CHUNK_SIZE = 16;
     public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+    public static final int PARALLEL_COPY_THRESHOLD = 1024 * 1024;
 
-    private final int initialCapacity;
-    private final double growthFactor;
-    private final int maxChunkSize;
+    // the values of the chars of both the standard and the URL safe Base64 alphabet, -1 for other chars
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        BASE64_VALUES['+'] = BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['/'] = BASE64_VALUES['_'] = 63;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    // not final, readExternal() restores them
+    private int initialCapacity;
+    private double growthFactor;
+    private int maxChunkSize;
 
     private List<byte[]> chunks;
 
@@ -31,6 +62,22 @@ public class ChunkedByteArray extends OutputStream {
     private int count;
     private int capacity;
 
+    // the memory manager reservation for the chunks, null when no manager was installed at construction
+    private BufferMemoryManager.Lease lease;
+
+    private int hash;
+    private int hashedChunkIdx;
+    private int hashedPos;
+    private int hashedCount;
+
+    private ContentDigest digest;
+    private int digestedChunkIdx;
+    private int digestedPos;
+    private int digestedCount;
+
+    // the chunks when compression is enabled, chunks then refers to the same list
+    private CompressedChunkList<byte[]> compressedChunks;
+
     public ChunkedByteArray(byte[] bytes) {
         this(DEFAULT_INITIAL_CAPACITY);
         append(bytes, 0, bytes.length);
@@ -41,10 +88,15 @@ public class ChunkedByteArray extends OutputStream {
     }
 
     @Override
-    public void write(int b) throws IOException {
+    public void write(int b) {
         append((byte) b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) {
+        append(b, off, len);
+    }
+
     public ChunkedByteArray(int initialCapacity) {
         this(initialCapacity, DEFAULT_MAX_CHUNK_SIZE);
     }
@@ -55,6 +107,23 @@ public class ChunkedByteArray extends OutputStream {
     }
 
     public ChunkedByteArray(int initialCapacity, int maxChunkSize, double growthFactor) {
+        configure(initialCapacity, maxChunkSize, growthFactor);
+
+        BufferMemoryManager manager = BufferMemoryManager.getGlobal();
+        if (manager != null) {
+            this.lease = manager.register(this);
+        }
+        growCapacity(initialCapacity);
+        this.chunks = new ArrayList<byte[]>();
+        this.currentChunk = new byte[initialCapacity];
+        this.chunks.add(this.currentChunk);
+        this.currentChunkIdx = 0;
+        this.posInCurrentChunk = 0;
+        this.count = 0;
+        resetHash();
+    }
+
+    private void configure(int initialCapacity, int maxChunkSize, double growthFactor) {
         if (initialCapacity <= 0) {
             throw new IllegalArgumentException("initialCapacity must be positive");
         }
@@ -67,36 +136,111 @@ public class ChunkedByteArray extends OutputStream {
         this.initialCapacity = initialCapacity;
         this.growthFactor = growthFactor;
         this.maxChunkSize = maxChunkSize;
-
-        this.chunks = new ArrayList<byte[]>();
-        this.currentChunk = new byte[initialCapacity];
-        this.chunks.add(this.currentChunk);
-        this.currentChunkIdx = 0;
-        this.posInCurrentChunk = 0;
-        this.count = 0;
-        this.capacity = initialCapacity;
     }
 
     public void append(byte b) {
-        ensureCapacityInternal(count + 1);
-        ensureCurrentChunkHasCapacity();
+        ensureCanGrow(1);
+        ensureCurrentChunkHasCapacity(1);
         currentChunk[posInCurrentChunk++] = b;
         this.count++;
     }
 
-    private int ensureCurrentChunkHasCapacity() {
-        int currentChunkCapacity = currentChunk.length - posInCurrentChunk;
-        if (currentChunkCapacity > 0) {
-            return currentChunkCapacity;
+    /**
+     * Makes room for at least one more byte at {@code posInCurrentChunk}. When the current chunk is full the
+     * writer moves on to the next chunk, which is only allocated at this point (or reused if {@link #setLength(int)}
+     * left it behind).
+     *
+     * @param sizeHint the number of bytes the caller is about to write
+     * @return the number of bytes that can be written into {@code currentChunk}
+     */
+    private int ensureCurrentChunkHasCapacity(int sizeHint) {
+        return ensureCurrentChunkHasCapacity(sizeHint, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param sizeLimit the size above which a new chunk is only allocated if {@code sizeHint} asks for it
+     */
+    private int ensureCurrentChunkHasCapacity(int sizeHint, int sizeLimit) {
+        if (currentChunk != null) {
+            int currentChunkCapacity = currentChunk.length - posInCurrentChunk;
+            if (currentChunkCapacity > 0) {
+                return currentChunkCapacity;
+            }
+            if (digest != null) {
+                digestUpTo(currentChunkIdx, currentChunk.length);
+            }
+            if (compressedChunks != null && capacity > compressedChunks.getCompression().getThreshold()) {
+                compressChunk(currentChunkIdx);
+            }
+        }
+        // go to the next chunk, getting hold of it first so the writer is left as it was when the memory budget
+        // is exceeded
+        int nextChunkIdx = currentChunkIdx + 1;
+        byte[] nextChunk;
+        if (nextChunkIdx < chunks.size()) {
+            nextChunk = chunks.get(nextChunkIdx);
+        } else {
+            nextChunk = allocateChunk(sizeHint, sizeLimit);
+            chunks.add(nextChunk);
         }
-        // go to the next chunk
-        assert currentChunkIdx + 1 < chunks.size();
+        currentChunkIdx = nextChunkIdx;
+        currentChunk = nextChunk;
         posInCurrentChunk = 0;
-        currentChunkIdx++;
-        currentChunk = chunks.get(currentChunkIdx);
         return currentChunk.length;
     }
 
+    /**
+     * Allocates a chunk following the growth policy. A request larger than the next regular chunk gets a single
+     * chunk of exactly the requested size, so that a large append is copied in one go.
+     */
+    private byte[] allocateChunk(int sizeHint) {
+        return allocateChunk(sizeHint, Integer.MAX_VALUE);
+    }
+
+    private byte[] allocateChunk(int sizeHint, int sizeLimit) {
+        int size = Math.min(nextChunkSize(), sizeLimit);
+        if (sizeHint > size) {
+            size = sizeHint;
+        }
+        growCapacity(size);
+        return new byte[size];
+    }
+
+    /**
+     * Accounts for a chunk of {@code size} bytes about to be allocated, reserving its memory first if there is a
+     * memory manager.
+     */
+    private void growCapacity(int size) {
+        if (lease != null) {
+            lease.reserve(size);
+        }
+        this.capacity += size;
+    }
+
+    private void shrinkCapacity(int size) {
+        this.capacity -= size;
+        if (lease != null) {
+            lease.release(size);
+        }
+    }
+
+    private int nextChunkSize() {
+        int size = capacity == 0 ? this.initialCapacity : (int) (capacity * growthFactor) - capacity;
+        if (size < MIN_CHUNK_SIZE) {
+            size = MIN_CHUNK_SIZE;
+        }
+        if (size > maxChunkSize) {
+            size = maxChunkSize;
+        }
+        return size;
+    }
+
+    private void ensureCanGrow(int length) {
+        if (count + length < 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
     public void append(byte[] bytes, int start, int length) throws IllegalArgumentException {
         if (length <= 0) {
             return;
@@ -114,9 +258,9 @@ public class ChunkedByteArray extends OutputStream {
             throw new StringIndexOutOfBoundsException("length: specifies length in excess of array length.");
         }
 
-        ensureCapacityInternal(count + length);
+        ensureCanGrow(length);
         while (length > 0) {
-            int bytesToCopy = ensureCurrentChunkHasCapacity();
+            int bytesToCopy = ensureCurrentChunkHasCapacity(length);
             if (bytesToCopy > length) {
                 bytesToCopy = length;
             }
@@ -131,6 +275,240 @@ public class ChunkedByteArray extends OutputStream {
         }
     }
 
+    /**
+     * Appends the bytes encoded in Base64 by {@code src}, decoding them straight from its chunks into the chunks of
+     * this array. Both the standard and the URL and file name safe alphabet are accepted, with or without padding.
+     *
+     * @throws IllegalArgumentException if {@code src} isn't valid Base64, in which case nothing is appended
+     */
+    public void appendBase64Decoded(ChunkedBuffer src) throws IllegalArgumentException {
+        if (src == null) {
+            throw new IllegalArgumentException("src: may not be null.");
+        }
+        int originalLength = count;
+        int remaining = (int) (src.length() * 3L / 4);
+        ensureCanGrow(remaining);
+        try {
+            int group = 0;
+            int charsInGroup = 0;
+            int padding = 0;
+            for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+                char[] chunk = src.chunkAt(i);
+                for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                    char c = chunk[j];
+                    if (c == '=') {
+                        padding++;
+                        continue;
+                    }
+                    int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+                    if (value < 0 || padding > 0) {
+                        throw new IllegalArgumentException("Illegal base64 character " + (int) c);
+                    }
+                    group = (group << 6) | value;
+                    if (++charsInGroup == 4) {
+                        appendInRun((byte) (group >> 16), remaining--);
+                        appendInRun((byte) (group >> 8), remaining--);
+                        appendInRun((byte) group, remaining--);
+                        group = 0;
+                        charsInGroup = 0;
+                    }
+                }
+            }
+            if (charsInGroup == 1 || (padding > 0 && (charsInGroup == 0 || charsInGroup + padding != 4))) {
+                throw new IllegalArgumentException("Invalid base64 length or padding");
+            }
+            if (charsInGroup == 2) {
+                appendInRun((byte) (group >> 4), 1);
+            } else if (charsInGroup == 3) {
+                appendInRun((byte) (group >> 10), 2);
+                appendInRun((byte) (group >> 2), 1);
+            }
+        } catch (IllegalArgumentException e) {
+            setLength(originalLength);
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the bytes written as hex digits, in upper or lower case, by {@code src}.
+     *
+     * @throws IllegalArgumentException if {@code src} isn't valid hex, in which case nothing is appended
+     */
+    public void appendHexDecoded(ChunkedBuffer src) throws IllegalArgumentException {
+        if (src == null) {
+            throw new IllegalArgumentException("src: may not be null.");
+        }
+        if (src.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits");
+        }
+        int originalLength = count;
+        int remaining = src.length() / 2;
+        ensureCanGrow(remaining);
+        int high = -1;
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            char[] chunk = src.chunkAt(i);
+            for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                char c = chunk[j];
+                int digit = c >= '0' && c <= '9' ? c - '0'
+                        : c >= 'a' && c <= 'f' ? c - 'a' + 10
+                        : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+                if (digit < 0) {
+                    setLength(originalLength);
+                    throw new IllegalArgumentException("Illegal hex digit " + (int) c);
+                }
+                if (high < 0) {
+                    high = digit;
+                } else {
+                    appendInRun((byte) ((high << 4) | digit), remaining--);
+                    high = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a single byte of a longer run, storing it straight into the current chunk.
+     *
+     * @param sizeHint the number of bytes of the run still to be appended, this one included
+     */
+    private void appendInRun(byte b, int sizeHint) {
+        if (currentChunk == null || posInCurrentChunk == currentChunk.length) {
+            ensureCurrentChunkHasCapacity(Math.max(sizeHint, 1));
+        }
+        currentChunk[posInCurrentChunk++] = b;
+        count++;
+    }
+
+    // DataOutput, big-endian like DataOutputStream; the *LE variants write little-endian
+
+    public void writeBoolean(boolean v) {
+        append(v ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeByte(int v) {
+        append((byte) v);
+    }
+
+    public void writeShort(int v) {
+        putBigEndian(v, 2);
+    }
+
+    public void writeChar(int v) {
+        putBigEndian(v, 2);
+    }
+
+    public void writeInt(int v) {
+        putBigEndian(v, 4);
+    }
+
+    public void writeLong(long v) {
+        putBigEndian(v, 8);
+    }
+
+    public void writeFloat(float v) {
+        putBigEndian(Float.floatToIntBits(v), 4);
+    }
+
+    public void writeDouble(double v) {
+        putBigEndian(Double.doubleToLongBits(v), 8);
+    }
+
+    public void writeShortLE(int v) {
+        putLittleEndian(v, 2);
+    }
+
+    public void writeIntLE(int v) {
+        putLittleEndian(v, 4);
+    }
+
+    public void writeLongLE(long v) {
+        putLittleEndian(v, 8);
+    }
+
+    public void writeFloatLE(float v) {
+        putLittleEndian(Float.floatToIntBits(v), 4);
+    }
+
+    public void writeDoubleLE(double v) {
+        putLittleEndian(Double.doubleToLongBits(v), 8);
+    }
+
+    public void writeBytes(String s) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            append((byte) s.charAt(i));
+        }
+    }
+
+    public void writeChars(String s) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            putBigEndian(s.charAt(i), 2);
+        }
+    }
+
+    public void writeUTF(String s) throws UTFDataFormatException {
+        int len = s.length();
+        int utfLength = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            utfLength += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        if (utfLength > 0xffff) {
+            throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+        }
+        putBigEndian(utfLength, 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                append((byte) c);
+            } else if (c < 0x800) {
+                append((byte) (0xc0 | (c >> 6)));
+                append((byte) (0x80 | (c & 0x3f)));
+            } else {
+                append((byte) (0xe0 | (c >> 12)));
+                append((byte) (0x80 | ((c >> 6) & 0x3f)));
+                append((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Writes the low {@code size} bytes of {@code v}, most significant first. When they fit in the current chunk
+     * they are stored straight into it, otherwise they go through {@link #append(byte)} one by one.
+     */
+    private void putBigEndian(long v, int size) {
+        ensureCanGrow(size);
+        byte[] chunk = currentChunk;
+        int pos = posInCurrentChunk;
+        if (chunk != null && chunk.length - pos >= size) {
+            for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+                chunk[pos++] = (byte) (v >>> shift);
+            }
+            posInCurrentChunk = pos;
+            count += size;
+        } else {
+            for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+                append((byte) (v >>> shift));
+            }
+        }
+    }
+
+    private void putLittleEndian(long v, int size) {
+        ensureCanGrow(size);
+        byte[] chunk = currentChunk;
+        int pos = posInCurrentChunk;
+        if (chunk != null && chunk.length - pos >= size) {
+            for (int shift = 0; shift < size * 8; shift += 8) {
+                chunk[pos++] = (byte) (v >>> shift);
+            }
+            posInCurrentChunk = pos;
+            count += size;
+        } else {
+            for (int shift = 0; shift < size * 8; shift += 8) {
+                append((byte) (v >>> shift));
+            }
+        }
+    }
+
     public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
         if (srcBegin < 0)
             throw new StringIndexOutOfBoundsException(srcBegin);
@@ -180,6 +558,27 @@ public class ChunkedByteArray extends OutputStream {
         }
     }
 
+    /**
+     * Like {@link #toArray()}, but for content of at least {@link #PARALLEL_COPY_THRESHOLD} bytes the chunks are
+     * copied into the result by {@code pool}, in parallel.
+     */
+    public byte[] toArray(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool: may not be null.");
+        }
+        if (count < PARALLEL_COPY_THRESHOLD) {
+            return toArray();
+        }
+        int n = filledChunkCount();
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + filledLength(i);
+        }
+        byte[] result = new byte[count];
+        pool.invoke(new ChunkCopyTask(chunks.subList(0, n).toArray(), offsets, result));
+        return result;
+    }
+
     public byte[] toArray() {
         byte[] result = new byte[count];
         if (count == 0) {
@@ -198,6 +597,115 @@ public class ChunkedByteArray extends OutputStream {
         return result;
     }
 
+    /**
+     * Compares the content with {@code bytes} without materializing it, stopping at the first difference.
+     */
+    public boolean contentEquals(byte[] bytes) {
+        if (bytes == null || bytes.length != count) {
+            return false;
+        }
+        int offset = 0;
+        for (int i = 0, n = filledChunkCount(); i < n; i++) {
+            byte[] chunk = chunks.get(i);
+            for (int j = 0, len = filledLength(i); j < len; j++) {
+                if (chunk[j] != bytes[offset++]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the content with the one of {@code other} without materializing either, walking both chunk lists
+     * side by side and stopping at the first difference.
+     */
+    public boolean contentEquals(ChunkedByteArray other) {
+        return other != null && other.count == count && compareContent(other) == 0;
+    }
+
+    /**
+     * Compares the content lexicographically, bytes being compared as unsigned values. This ordering is not consistent
+     * with {@code equals}, which is identity based.
+     */
+    public int compareTo(ChunkedByteArray other) {
+        return compareContent(other);
+    }
+
+    private int compareContent(ChunkedByteArray other) {
+        int n = filledChunkCount();
+        int otherN = other.filledChunkCount();
+        int i = 0, pos = 0, len = n > 0 ? filledLength(0) : 0;
+        int otherI = 0, otherPos = 0, otherLen = otherN > 0 ? other.filledLength(0) : 0;
+        while (true) {
+            if (pos == len) {
+                if (++i >= n) {
+                    break;
+                }
+                pos = 0;
+                len = filledLength(i);
+                continue;
+            }
+            if (otherPos == otherLen) {
+                if (++otherI >= otherN) {
+                    break;
+                }
+                otherPos = 0;
+                otherLen = other.filledLength(otherI);
+                continue;
+            }
+            byte[] chunk = chunks.get(i);
+            byte[] otherChunk = other.chunks.get(otherI);
+            int end = pos + Math.min(len - pos, otherLen - otherPos);
+            for (; pos < end; pos++, otherPos++) {
+                if (chunk[pos] != otherChunk[otherPos]) {
+                    return (chunk[pos] & 0xff) - (otherChunk[otherPos] & 0xff);
+                }
+            }
+        }
+        return count - other.count;
+    }
+
+    /**
+     * Returns a hash code of the content, the same value as {@code Arrays.hashCode(toArray())}. It is computed
+     * incrementally: only what was appended since the previous call is hashed, unless the content was truncated in
+     * between. {@code hashCode()} itself stays identity based, so buffers can still be used as keys while they are
+     * written to.
+     */
+    public int contentHashCode() {
+        if (count > 0) {
+            int chunkIdx = currentChunkIdx;
+            int pos = posInCurrentChunk;
+            if (chunkIdx < hashedChunkIdx) {
+                return hash;
+            }
+            int h = hash;
+            while (hashedChunkIdx <= chunkIdx) {
+                byte[] chunk = chunks.get(hashedChunkIdx);
+                int end = hashedChunkIdx < chunkIdx ? chunk.length : pos;
+                for (int j = hashedPos; j < end; j++) {
+                    h = 31 * h + chunk[j];
+                }
+                hashedCount += end - hashedPos;
+                hashedPos = end;
+                if (hashedChunkIdx == chunkIdx) {
+                    break;
+                }
+                hashedChunkIdx++;
+                hashedPos = 0;
+            }
+            hash = h;
+        }
+        return hash;
+    }
+
+    private void resetHash() {
+        hash = 1;
+        hashedChunkIdx = 0;
+        hashedPos = 0;
+        hashedCount = 0;
+    }
+
     public int capacity() {
         return capacity;
     }
@@ -207,10 +715,18 @@ public class ChunkedByteArray extends OutputStream {
     }
 
     public void clear() {
+        resetHash();
+        if (digest != null) {
+            restartDigest();
+        }
+        if (compressedChunks != null && lease != null) {
+            // released when the chunks were compressed
+            lease.adopt(compressedChunks.getSavedBytes());
+        }
         chunks.clear();
         currentChunk = null;
         currentChunkIdx = -1;
-        capacity = 0;
+        shrinkCapacity(capacity);
         count = 0;
         posInCurrentChunk = 0;
     }
@@ -219,55 +735,289 @@ public class ChunkedByteArray extends OutputStream {
         if (newLength < 0)
             throw new IllegalArgumentException();
         ensureCapacityInternal(newLength);
-        this.count = newLength;
+        int chunkIdx = -1;
+        byte[] chunk = null;
+        int pos = newLength;
         for (int i = 0, chunks1Size = this.chunks.size(); i < chunks1Size; i++) {
-            byte[] chunk = this.chunks.get(i);
-            this.currentChunk = chunk;
-            this.posInCurrentChunk = newLength;
-            this.currentChunkIdx = i;
-            if (chunk.length >= newLength) {
+            chunk = this.chunks.get(i);
+            chunkIdx = i;
+            if (chunk.length >= pos) {
                 break;
             }
-            newLength -= chunk.length;
+            pos -= chunk.length;
+        }
+        if (compressedChunks != null && chunkIdx >= 0) {
+            // writing continues in chunks that may have been compressed; they are thawed before anything changes,
+            // so a thaw that doesn't fit the memory budget leaves the buffer as it was
+            thawChunksFrom(chunkIdx);
+            chunk = chunks.get(chunkIdx);
+        }
+        this.count = newLength;
+        if (chunkIdx >= 0) {
+            this.currentChunk = chunk;
+            this.posInCurrentChunk = pos;
+            this.currentChunkIdx = chunkIdx;
+        }
+        if (this.count < hashedCount) {
+            resetHash();
+        }
+        if (digest != null && this.count < digestedCount) {
+            restartDigest();
         }
     }
 
     public void trimToSize() {
-        chunks.subList(currentChunkIdx + 1, chunks.size()).clear();
+        List<byte[]> unused = chunks.subList(currentChunkIdx + 1, chunks.size());
+        for (byte[] chunk : unused) {
+            shrinkCapacity(chunk.length);
+        }
+        unused.clear();
     }
 
+    /**
+     * Makes sure the chunks can hold {@code newCapacity} bytes. Appends allocate their chunks lazily, so this is
+     * only needed by {@link #setLength(int)}; any shortfall is covered by a single chunk.
+     */
     private void ensureCapacityInternal(int newCapacity) {
         if (newCapacity < 0)
             throw new IllegalArgumentException();
-        while (newCapacity > this.capacity) {
-            // allocate a new chunk
-            int size = capacity == 0 ? this.initialCapacity : (int) (capacity * growthFactor) - capacity;
-            if (size < MIN_CHUNK_SIZE) {
-                size = MIN_CHUNK_SIZE;
-            }
-            if (size > maxChunkSize) {
-                size = maxChunkSize;
+        if (newCapacity > this.capacity) {
+            this.chunks.add(allocateChunk(newCapacity - this.capacity));
+        }
+    }
+
+    /**
+     * Starts maintaining {@code digest} over its content, or stops when it is null. The digest is reset and
+     * brought up to date with the current content; from then on every chunk is fed to it as soon as the writer has
+     * filled it, and {@link #getDigest()} only has to add the partially filled last chunk.
+     */
+    public void trackDigest(ContentDigest digest) {
+        this.digest = digest;
+        if (digest != null) {
+            restartDigest();
+        }
+    }
+
+    /**
+     * @return the digest of the current content, as maintained since {@link #trackDigest(ContentDigest)}
+     */
+    public byte[] getDigest() {
+        if (digest == null) {
+            throw new IllegalStateException("No digest is being tracked");
+        }
+        if (count > 0) {
+            digestUpTo(currentChunkIdx, posInCurrentChunk);
+        }
+        return digest.value();
+    }
+
+    private void restartDigest() {
+        digest.reset();
+        digestedChunkIdx = 0;
+        digestedPos = 0;
+        digestedCount = 0;
+    }
+
+    /**
+     * Feeds the content up to {@code pos} in the chunk at {@code chunkIdx} to the digest. All chunks before the
+     * current one are full, so the content between what was digested and that position is contiguous.
+     */
+    private void digestUpTo(int chunkIdx, int pos) {
+        if (chunkIdx < digestedChunkIdx) {
+            // the end of the previous chunk, which is where the digest is at
+            return;
+        }
+        while (digestedChunkIdx < chunkIdx) {
+            byte[] chunk = chunks.get(digestedChunkIdx);
+            digest.update(chunk, digestedPos, chunk.length - digestedPos);
+            digestedCount += chunk.length - digestedPos;
+            digestedChunkIdx++;
+            digestedPos = 0;
+        }
+        if (pos > digestedPos) {
+            digest.update(chunks.get(chunkIdx), digestedPos, pos - digestedPos);
+            digestedCount += pos - digestedPos;
+            digestedPos = pos;
+        }
+    }
+
+    /**
+     * Turns in-memory compression of sealed chunks on, or off when {@code compression} is null, in which case the
+     * compressed chunks are inflated again.
+     */
+    public void setChunkCompression(ChunkCompression compression) {
+        if (compressedChunks != null) {
+            if (compressedChunks.getCompression() == compression) {
+                return;
             }
-            this.chunks.add(new byte[size]);
-            this.capacity += size;
+            thawChunksFrom(0);
+            chunks = new ArrayList<byte[]>(compressedChunks);
+            compressedChunks = null;
         }
-        if (currentChunk == null && chunks.size() > 0) {
-            currentChunkIdx = 0;
-            currentChunk = chunks.get(0);
-            posInCurrentChunk = 0;
-            count = 0;
+        if (compression != null) {
+            compressedChunks = new CompressedChunkList<byte[]>(compression, false, chunks);
+            chunks = compressedChunks;
+        }
+        if (currentChunkIdx >= 0) {
+            currentChunk = chunks.get(currentChunkIdx);
+        }
+    }
+
+    public ChunkCompression getChunkCompression() {
+        return compressedChunks == null ? null : compressedChunks.getCompression();
+    }
+
+    /**
+     * Compresses the chunks before the one being written to that aren't compressed yet. Meant to be called when the
+     * buffer is done with, or hasn't been written to for a while.
+     *
+     * @return the number of bytes saved
+     * @throws IllegalStateException if compression isn't enabled
+     */
+    public long compressSealedChunks() throws IllegalStateException {
+        if (compressedChunks == null) {
+            throw new IllegalStateException("Chunk compression is not enabled");
+        }
+        long saved = 0;
+        for (int i = 0; i < currentChunkIdx; i++) {
+            saved += compressChunk(i);
+        }
+        return saved;
+    }
+
+    private long compressChunk(int idx) {
+        long saved = compressedChunks.compress(idx);
+        if (lease != null) {
+            lease.release(saved);
+        }
+        return saved;
+    }
+
+    /**
+     * Turns the chunks from {@code idx} on back into plain ones. The memory they grow by was given back when they
+     * were compressed, so it is reserved again first, failing or blocking like any other growth.
+     */
+    private void thawChunksFrom(int idx) {
+        if (lease != null) {
+            lease.reserve(compressedChunks.thawCost(idx));
         }
+        compressedChunks.thawFrom(idx);
     }
 
     public int getUnused() {
-        int sz = currentChunk.length - posInCurrentChunk;
+        int sz = currentChunk == null ? 0 : currentChunk.length - posInCurrentChunk;
         for (int i = currentChunkIdx + 1, chunksSize = chunks.size(); i < chunksSize; i++) {
             sz += chunks.get(i).length;
         }
         return sz;
     }
 
-    public InputStream getInputStream() {
+    // chunk level access for the codecs in this package
+
+    /**
+     * @return the number of chunks holding content
+     */
+    int filledChunkCount() {
+        return count == 0 ? 0 : currentChunkIdx + 1;
+    }
+
+    byte[] chunkAt(int idx) {
+        return chunks.get(idx);
+    }
+
+    /**
+     * @return the number of bytes of content in the chunk at {@code idx}
+     */
+    int filledLength(int idx) {
+        return idx < currentChunkIdx ? chunks.get(idx).length : posInCurrentChunk;
+    }
+
+    /**
+     * Makes room for writing straight into {@link #writableChunk()} at {@link #writablePos()}; the bytes written
+     * there become content through {@link #commit(int)}.
+     *
+     * @return the number of bytes that can be written into the writable chunk
+     */
+    int ensureWritable(int sizeHint) {
+        ensureCanGrow(1);
+        return ensureCurrentChunkHasCapacity(sizeHint);
+    }
+
+    /**
+     * Like {@link #ensureWritable(int)}, but a new chunk is no larger than {@code sizeLimit} (or {@code sizeHint} if
+     * that is larger), for a reader that knows how much is left and shouldn't trust the configuration it was given.
+     */
+    int ensureWritable(int sizeHint, int sizeLimit) {
+        ensureCanGrow(1);
+        return ensureCurrentChunkHasCapacity(sizeHint, sizeLimit);
+    }
+
+    byte[] writableChunk() {
+        return currentChunk;
+    }
+
+    int writablePos() {
+        return posInCurrentChunk;
+    }
+
+    void commit(int length) {
+        ensureCanGrow(length);
+        posInCurrentChunk += length;
+        count += length;
+    }
+
+    int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /**
+     * Empties this buffer and switches it to the given chunk configuration.
+     */
+    void reset(int initialCapacity, int maxChunkSize, double growthFactor) {
+        configure(initialCapacity, maxChunkSize, growthFactor);
+        clear();
+    }
+
+    /**
+     * Writes the configuration and content in the format of {@link ChunkedCodec}.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ChunkedCodec.write(this, out);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        ChunkedCodec.readInto(in, this);
+    }
+
+    /**
+     * @return a spliterator over the bytes as unsigned values, which splits on chunk boundaries for parallel
+     * processing
+     */
+    public Spliterator.OfInt spliterator() {
+        int n = filledChunkCount();
+        byte[][] filled = chunks.subList(0, n).toArray(new byte[n][]);
+        return new ChunkedByteSpliterator(filled, n == 0 ? 0 : filledLength(n - 1), 0, 0, n, count);
+    }
+
+    /**
+     * @return a stream of the bytes as unsigned values, which can be made {@link IntStream#parallel() parallel}
+     */
+    public IntStream bytes() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /**
+     * @return a stream over the current content, which also implements {@link DataInput}
+     */
+    public ChunkedByteBufferInputStream getInputStream() {
         return new ChunkedByteBufferInputStream(chunks, count);
     }
 
@@ -288,7 +1038,12 @@ public class ChunkedByteArray extends OutputStream {
         outputStream.write(currentChunk, 0, posInCurrentChunk);
     }
 
-    private static class ChunkedByteBufferInputStream extends InputStream {
+    /**
+     * Reads the content of a {@link ChunkedByteArray}. Besides the sequential {@link DataInput} reads (and their
+     * little-endian {@code *LE} variants) it supports absolute reads at an index from the start of the content,
+     * which leave the read position untouched.
+     */
+    public static final class ChunkedByteBufferInputStream extends InputStream implements DataInput {
         private final List<byte[]> chunks;
         private final int count;
         private int pos = 0;
@@ -326,7 +1081,7 @@ public class ChunkedByteArray extends OutputStream {
             }
             gotoNextReadableChunk();
             pos++;
-            return currentChunk[posInCurrentChunk++];
+            return currentChunk[posInCurrentChunk++] & 0xff;
         }
 
         private int gotoNextReadableChunk() {
@@ -393,8 +1148,8 @@ public class ChunkedByteArray extends OutputStream {
                 }
                 if (bytesToAdvance > 0) {
                     remaining -= bytesToAdvance;
-                    this.posInCurrentChunk += remaining;
-                    this.pos += remaining;
+                    this.posInCurrentChunk += bytesToAdvance;
+                    this.pos += bytesToAdvance;
                 }
             }
             return n;
@@ -405,6 +1160,259 @@ public class ChunkedByteArray extends OutputStream {
             return (count - pos) > 0;
         }
 
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            return count - pos;
+        }
+
+        /**
+         * Writes the rest of the content to {@code out}, handing it each chunk as it is.
+         *
+         * @return the number of bytes transferred
+         */
+        public long transferTo(OutputStream out) throws IOException {
+            if (out == null) {
+                throw new NullPointerException("out");
+            }
+            ensureOpen();
+            long transferred = 0;
+            while (pos < count) {
+                int bytesToCopy = Math.min(gotoNextReadableChunk(), count - pos);
+                out.write(currentChunk, posInCurrentChunk, bytesToCopy);
+                transferred += bytesToCopy;
+                this.posInCurrentChunk += bytesToCopy;
+                this.pos += bytesToCopy;
+            }
+            return transferred;
+        }
+
+        /**
+         * @return the rest of the content, copied once into an array of exactly its size
+         */
+        public byte[] readAllBytes() throws IOException {
+            ensureOpen();
+            byte[] bytes = new byte[count - pos];
+            if (bytes.length > 0) {
+                read(bytes, 0, bytes.length);
+            }
+            return bytes;
+        }
+
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len > count - pos) {
+                throw new EOFException();
+            }
+            if (len > 0) {
+                read(b, off, len);
+            }
+        }
+
+        public int skipBytes(int n) throws IOException {
+            return (int) skip(n);
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readUnsignedByte() != 0;
+        }
+
+        public byte readByte() throws IOException {
+            return (byte) readUnsignedByte();
+        }
+
+        public int readUnsignedByte() throws IOException {
+            int b = read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        public short readShort() throws IOException {
+            return (short) readBigEndian(2);
+        }
+
+        public int readUnsignedShort() throws IOException {
+            return (int) readBigEndian(2);
+        }
+
+        public char readChar() throws IOException {
+            return (char) readBigEndian(2);
+        }
+
+        public int readInt() throws IOException {
+            return (int) readBigEndian(4);
+        }
+
+        public long readLong() throws IOException {
+            return readBigEndian(8);
+        }
+
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat((int) readBigEndian(4));
+        }
+
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readBigEndian(8));
+        }
+
+        public short readShortLE() throws IOException {
+            return (short) readLittleEndian(2);
+        }
+
+        public int readIntLE() throws IOException {
+            return (int) readLittleEndian(4);
+        }
+
+        public long readLongLE() throws IOException {
+            return readLittleEndian(8);
+        }
+
+        public float readFloatLE() throws IOException {
+            return Float.intBitsToFloat((int) readLittleEndian(4));
+        }
+
+        public double readDoubleLE() throws IOException {
+            return Double.longBitsToDouble(readLittleEndian(8));
+        }
+
+        /**
+         * Reads a line terminated by {@code '\n'}, {@code '\r'} or {@code "\r\n"}, each byte taken as a char like
+         * {@link DataInputStream#readLine()} does.
+         *
+         * @return the line without its terminator, or null at the end of the stream
+         */
+        public String readLine() throws IOException {
+            ensureOpen();
+            if (pos >= count) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (pos < count) {
+                int c = read();
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (pos < count && peek() == '\n') {
+                        read();
+                    }
+                    break;
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+
+        private int peek() {
+            gotoNextReadableChunk();
+            return currentChunk[posInCurrentChunk] & 0xff;
+        }
+
+        private long readBigEndian(int size) throws IOException {
+            ensureOpen();
+            if (count - pos < size) {
+                throw new EOFException();
+            }
+            long v = 0;
+            if (currentChunk.length - posInCurrentChunk >= size) {
+                byte[] chunk = currentChunk;
+                for (int i = posInCurrentChunk, end = i + size; i < end; i++) {
+                    v = (v << 8) | (chunk[i] & 0xff);
+                }
+                posInCurrentChunk += size;
+                pos += size;
+            } else {
+                for (int i = 0; i < size; i++) {
+                    v = (v << 8) | read();
+                }
+            }
+            return v;
+        }
+
+        private long readLittleEndian(int size) throws IOException {
+            ensureOpen();
+            if (count - pos < size) {
+                throw new EOFException();
+            }
+            long v = 0;
+            if (currentChunk.length - posInCurrentChunk >= size) {
+                byte[] chunk = currentChunk;
+                for (int i = posInCurrentChunk + size - 1; i >= posInCurrentChunk; i--) {
+                    v = (v << 8) | (chunk[i] & 0xff);
+                }
+                posInCurrentChunk += size;
+                pos += size;
+            } else {
+                for (int shift = 0; shift < size * 8; shift += 8) {
+                    v |= (long) read() << shift;
+                }
+            }
+            return v;
+        }
+
+        public byte getByte(long index) throws IOException {
+            return (byte) getBigEndian(index, 1);
+        }
+
+        public short getShort(long index) throws IOException {
+            return (short) getBigEndian(index, 2);
+        }
+
+        public int getInt(long index) throws IOException {
+            return (int) getBigEndian(index, 4);
+        }
+
+        public long getLong(long index) throws IOException {
+            return getBigEndian(index, 8);
+        }
+
+        public double getDouble(long index) throws IOException {
+            return Double.longBitsToDouble(getBigEndian(index, 8));
+        }
+
+        private long getBigEndian(long index, int size) throws IOException {
+            ensureOpen();
+            if (index < 0 || index > count - size) {
+                throw new IndexOutOfBoundsException("index: " + index);
+            }
+            int chunkIdx;
+            byte[] chunk;
+            int posInChunk;
+            long currentChunkStart = pos - posInCurrentChunk;
+            if (index >= currentChunkStart && index < currentChunkStart + currentChunk.length) {
+                chunkIdx = currentChunkIdx;
+                chunk = currentChunk;
+                posInChunk = (int) (index - currentChunkStart);
+            } else {
+                chunkIdx = 0;
+                chunk = chunks.get(0);
+                posInChunk = (int) index;
+                while (posInChunk >= chunk.length) {
+                    posInChunk -= chunk.length;
+                    chunk = chunks.get(++chunkIdx);
+                }
+            }
+            long v = 0;
+            for (int i = 0; i < size; i++) {
+                if (posInChunk == chunk.length) {
+                    chunk = chunks.get(++chunkIdx);
+                    posInChunk = 0;
+                }
+                v = (v << 8) | (chunk[posInChunk++] & 0xff);
+            }
+            return v;
+        }
+
         public boolean markSupported() {
             return true;
         }
@@ -433,4 +1441,92 @@ public class ChunkedByteArray extends OutputStream {
             currentChunk = null;
         }
     }
+
+    /**
+     * Splits a snapshot of the filled chunks on chunk boundaries, each half getting about the same number of
+     * bytes. The content must not be truncated or cleared while the spliterator is in use.
+     */
+    private static class ChunkedByteSpliterator implements Spliterator.OfInt {
+        private final byte[][] chunks;
+        private final int lastChunkLength;
+        private int chunkIdx;
+        private int pos;
+        private final int fence;
+        private long remaining;
+
+        private ChunkedByteSpliterator(byte[][] chunks, int lastChunkLength, int chunkIdx, int pos, int fence,
+                                       long remaining) {
+            this.chunks = chunks;
+            this.lastChunkLength = lastChunkLength;
+            this.chunkIdx = chunkIdx;
+            this.pos = pos;
+            this.fence = fence;
+            this.remaining = remaining;
+        }
+
+        private int filledLength(int idx) {
+            return idx == chunks.length - 1 ? lastChunkLength : chunks[idx].length;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            while (chunkIdx < fence) {
+                if (pos < filledLength(chunkIdx)) {
+                    remaining--;
+                    action.accept(chunks[chunkIdx][pos++] & 0xff);
+                    return true;
+                }
+                chunkIdx++;
+                pos = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            for (; chunkIdx < fence; chunkIdx++, pos = 0) {
+                byte[] chunk = chunks[chunkIdx];
+                for (int end = filledLength(chunkIdx); pos < end; pos++) {
+                    action.accept(chunk[pos] & 0xff);
+                }
+            }
+            remaining = 0;
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            if (fence - chunkIdx < 2) {
+                return null;
+            }
+            // hand out the chunks that bring the prefix closest to half of what is left
+            int splitIdx = chunkIdx;
+            long prefix = filledLength(splitIdx) - pos;
+            while (splitIdx + 2 < fence && 2 * prefix + filledLength(splitIdx + 1) < remaining) {
+                splitIdx++;
+                prefix += filledLength(splitIdx);
+            }
+            ChunkedByteSpliterator head = new ChunkedByteSpliterator(chunks, lastChunkLength, chunkIdx, pos,
+                    splitIdx + 1, prefix);
+            chunkIdx = splitIdx + 1;
+            pos = 0;
+            remaining -= prefix;
+            return head;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
 }
@@ -0,0 +1,292 @@
+package org.apache.jasper.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Compact binary form of {@link ChunkedByteArray} and {@link ChunkedBuffer}, for session replication and distributed
+ * caches. This is also what their {@code writeExternal} and {@code readExternal} use.
+ * <p>
+ * The format is a header (version, kind, encoding, chunk configuration and length) followed by the content, written
+ * chunk by chunk and read back into chunks allocated as the serialized configuration grows them, so no array of the
+ * full content size is needed on either side. The reader allocates no chunk larger than what is left to read or than
+ * what it has read so far, so a corrupt length or chunk configuration can't make it allocate much more than the
+ * stream actually holds. Chars are written as Latin-1 when they all fit in one byte, otherwise as modified UTF-8 (each
+ * UTF-16 unit encoded on its own and {@code '\0'} as two bytes, as {@link DataOutput#writeUTF} does) when that is
+ * smaller than UTF-16, and as UTF-16 otherwise.
+ */
+public final class ChunkedCodec {
+    public static final int VERSION = 1;
+
+    private static final byte KIND_BYTES = 'B';
+    private static final byte KIND_CHARS = 'C';
+
+    private static final byte ENCODING_RAW = 0;
+    private static final byte ENCODING_LATIN1 = 1;
+    private static final byte ENCODING_UTF8 = 2;
+
+    private static final int HEADER_SIZE = 23;
+    private static final int SCRATCH_SIZE = 4 * 1024;
+
+    private ChunkedCodec() {
+    }
+
+    public static void write(ChunkedByteArray src, DataOutput out) throws IOException {
+        writeHeader(out, KIND_BYTES, ENCODING_RAW, src.getInitialCapacity(), src.getMaxChunkSize(),
+                src.getGrowthFactor(), src.length());
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            out.write(src.chunkAt(i), 0, src.filledLength(i));
+        }
+    }
+
+    /**
+     * Writes {@code src} to {@code channel}, handing each chunk to the channel as it is.
+     */
+    public static void write(ChunkedByteArray src, WritableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) VERSION).put(KIND_BYTES).put(ENCODING_RAW)
+                .putInt(src.getInitialCapacity()).putInt(src.getMaxChunkSize()).putDouble(src.getGrowthFactor())
+                .putInt(src.length());
+        header.flip();
+        ChunkedFileContent.writeFully(channel, header);
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            ChunkedFileContent.writeFully(channel, ByteBuffer.wrap(src.chunkAt(i), 0, src.filledLength(i)));
+        }
+    }
+
+    public static void write(ChunkedBuffer src, DataOutput out) throws IOException {
+        // pick the encoding in a first pass over the chunks
+        int maxChar = 0;
+        long utf8Length = 0;
+        for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+            char[] chunk = src.chunkAt(i);
+            for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                char c = chunk[j];
+                maxChar |= c;
+                utf8Length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+        }
+        byte encoding = maxChar < 0x100 ? ENCODING_LATIN1
+                : utf8Length < 2L * src.length() ? ENCODING_UTF8 : ENCODING_RAW;
+        writeHeader(out, KIND_CHARS, encoding, src.getInitialCapacity(), src.getMaxChunkSize(),
+                src.getGrowthFactor(), src.length());
+        if (encoding == ENCODING_UTF8) {
+            out.writeLong(utf8Length);
+        }
+
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        int n = 0;
+        for (int i = 0, chunkCount = src.filledChunkCount(); i < chunkCount; i++) {
+            char[] chunk = src.chunkAt(i);
+            for (int j = 0, len = src.filledLength(i); j < len; j++) {
+                if (n > SCRATCH_SIZE - 3) {
+                    out.write(scratch, 0, n);
+                    n = 0;
+                }
+                char c = chunk[j];
+                if (encoding == ENCODING_LATIN1) {
+                    scratch[n++] = (byte) c;
+                } else if (encoding == ENCODING_RAW) {
+                    scratch[n++] = (byte) (c >> 8);
+                    scratch[n++] = (byte) c;
+                } else if (c != 0 && c < 0x80) {
+                    scratch[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    scratch[n++] = (byte) (0xc0 | (c >> 6));
+                    scratch[n++] = (byte) (0x80 | (c & 0x3f));
+                } else {
+                    scratch[n++] = (byte) (0xe0 | (c >> 12));
+                    scratch[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    scratch[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+        out.write(scratch, 0, n);
+    }
+
+    private static void writeHeader(DataOutput out, byte kind, byte encoding, int initialCapacity, int maxChunkSize,
+                                    double growthFactor, int length) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+        out.writeByte(encoding);
+        out.writeInt(initialCapacity);
+        out.writeInt(maxChunkSize);
+        out.writeDouble(growthFactor);
+        out.writeInt(length);
+    }
+
+    public static ChunkedByteArray readByteArray(DataInput in) throws IOException {
+        ChunkedByteArray dst = new ChunkedByteArray();
+        readInto(in, dst);
+        return dst;
+    }
+
+    /**
+     * Replaces the configuration and content of {@code dst} with the ones read from {@code in}.
+     */
+    public static void readInto(DataInput in, ChunkedByteArray dst) throws IOException {
+        Header header = readHeader(in, KIND_BYTES);
+        if (header.encoding != ENCODING_RAW) {
+            throw new StreamCorruptedException("Unknown encoding " + header.encoding);
+        }
+        dst.reset(header.initialCapacity, header.maxChunkSize, header.growthFactor);
+        int length = header.length;
+        while (length > 0) {
+            int bytesToRead = Math.min(dst.ensureWritable(1, chunkLimit(header.length, length)), length);
+            in.readFully(dst.writableChunk(), dst.writablePos(), bytesToRead);
+            dst.commit(bytesToRead);
+            length -= bytesToRead;
+        }
+    }
+
+    public static ChunkedByteArray readByteArray(ReadableByteChannel channel) throws IOException {
+        ByteBuffer headerBytes = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, headerBytes);
+        Header header = readHeader(new DataInputStream(new ByteArrayInputStream(headerBytes.array())), KIND_BYTES);
+        if (header.encoding != ENCODING_RAW) {
+            throw new StreamCorruptedException("Unknown encoding " + header.encoding);
+        }
+        ChunkedByteArray dst = new ChunkedByteArray();
+        dst.reset(header.initialCapacity, header.maxChunkSize, header.growthFactor);
+        int length = header.length;
+        while (length > 0) {
+            int bytesToRead = Math.min(dst.ensureWritable(1, chunkLimit(header.length, length)), length);
+            readFully(channel, ByteBuffer.wrap(dst.writableChunk(), dst.writablePos(), bytesToRead));
+            dst.commit(bytesToRead);
+            length -= bytesToRead;
+        }
+        return dst;
+    }
+
+    public static ChunkedBuffer readBuffer(DataInput in) throws IOException {
+        ChunkedBuffer dst = new ChunkedBuffer();
+        readInto(in, dst);
+        return dst;
+    }
+
+    /**
+     * Replaces the configuration and content of {@code dst} with the ones read from {@code in}.
+     */
+    public static void readInto(DataInput in, ChunkedBuffer dst) throws IOException {
+        Header header = readHeader(in, KIND_CHARS);
+        byte encoding = header.encoding;
+        if (encoding != ENCODING_RAW && encoding != ENCODING_LATIN1 && encoding != ENCODING_UTF8) {
+            throw new StreamCorruptedException("Unknown encoding " + encoding);
+        }
+        dst.reset(header.initialCapacity, header.maxChunkSize, header.growthFactor);
+        int length = header.length;
+        long encodedLength = encoding == ENCODING_UTF8 ? in.readLong()
+                : encoding == ENCODING_RAW ? 2L * length : length;
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        int inScratch = 0;
+        int posInScratch = 0;
+        while (length > 0) {
+            int free = dst.ensureWritable(1, chunkLimit(header.length, length));
+            char[] chunk = dst.writableChunk();
+            int pos = dst.writablePos();
+            int end = pos + Math.min(free, length);
+            int start = pos;
+            while (pos < end) {
+                if (inScratch - posInScratch < 3) {
+                    // refill, keeping what is left of a multi byte sequence
+                    int left = inScratch - posInScratch;
+                    System.arraycopy(scratch, posInScratch, scratch, 0, left);
+                    int bytesToRead = (int) Math.min(SCRATCH_SIZE - left, encodedLength);
+                    in.readFully(scratch, left, bytesToRead);
+                    encodedLength -= bytesToRead;
+                    inScratch = left + bytesToRead;
+                    posInScratch = 0;
+                }
+                int available = inScratch - posInScratch;
+                if (available == 0) {
+                    throw new EOFException();
+                }
+                if (encoding == ENCODING_LATIN1) {
+                    chunk[pos++] = (char) (scratch[posInScratch++] & 0xff);
+                } else if (encoding == ENCODING_RAW) {
+                    if (available < 2) {
+                        throw new EOFException();
+                    }
+                    chunk[pos++] = (char) (((scratch[posInScratch] & 0xff) << 8) | (scratch[posInScratch + 1] & 0xff));
+                    posInScratch += 2;
+                } else {
+                    int b = scratch[posInScratch++] & 0xff;
+                    if (b < 0x80) {
+                        chunk[pos++] = (char) b;
+                    } else if ((b & 0xe0) == 0xc0 && available >= 2 && isContinuation(scratch[posInScratch])) {
+                        chunk[pos++] = (char) (((b & 0x1f) << 6) | (scratch[posInScratch++] & 0x3f));
+                    } else if ((b & 0xf0) == 0xe0 && available >= 3 && isContinuation(scratch[posInScratch])
+                            && isContinuation(scratch[posInScratch + 1])) {
+                        chunk[pos++] = (char) (((b & 0x0f) << 12) | ((scratch[posInScratch] & 0x3f) << 6)
+                                | (scratch[posInScratch + 1] & 0x3f));
+                        posInScratch += 2;
+                    } else {
+                        throw new StreamCorruptedException("Malformed UTF-8 input");
+                    }
+                }
+            }
+            dst.commit(pos - start);
+            length -= pos - start;
+        }
+    }
+
+    /**
+     * @return the largest chunk to allocate with {@code remaining} of {@code length} values left to read
+     */
+    private static int chunkLimit(int length, int remaining) {
+        return Math.min(remaining, Math.max(SCRATCH_SIZE, length - remaining));
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    private static Header readHeader(DataInput in, byte kind) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported version " + version);
+        }
+        if (in.readByte() != kind) {
+            throw new StreamCorruptedException(kind == KIND_BYTES ? "Not a serialized ChunkedByteArray"
+                    : "Not a serialized ChunkedBuffer");
+        }
+        Header header = new Header();
+        header.encoding = in.readByte();
+        header.initialCapacity = in.readInt();
+        header.maxChunkSize = in.readInt();
+        header.growthFactor = in.readDouble();
+        header.length = in.readInt();
+        if (header.length < 0) {
+            throw new StreamCorruptedException("Invalid length " + header.length);
+        }
+        if (header.initialCapacity <= 0 || header.maxChunkSize < header.initialCapacity
+                || !(header.growthFactor >= 1)) {
+            throw new StreamCorruptedException("Invalid chunk configuration");
+        }
+        return header;
+    }
+
+    private static class Header {
+        private byte encoding;
+        private int initialCapacity;
+        private int maxChunkSize;
+        private double growthFactor;
+        private int length;
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
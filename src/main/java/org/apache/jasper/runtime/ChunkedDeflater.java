@@ -0,0 +1,286 @@
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate and gzip compression of {@link ChunkedByteArray} content, chunk by chunk, into another
+ * {@link ChunkedByteArray} or straight into a channel.
+ * <p>
+ * {@link Deflater} instances (and their native zlib state) are expensive to set up, so they are kept in a bounded pool
+ * and reset for reuse instead of being created per response. The gzip header and CRC trailer are written here, so
+ * no {@code GZIPOutputStream} and none of its buffers are involved. For incremental streaming, {@link #open} returns
+ * a {@link Stream} whose {@code flush()} performs a zlib sync flush, making everything written so far decodable by
+ * the client.
+ */
+public class ChunkedDeflater {
+    public static final int DEFAULT_MAX_POOLED = 32;
+    public static final int CHANNEL_BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final int level;
+    private final BlockingQueue<PooledDeflater> zlibPool;
+    private final BlockingQueue<PooledDeflater> gzipPool;
+
+    public ChunkedDeflater() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_POOLED);
+    }
+
+    public ChunkedDeflater(int level) {
+        this(level, DEFAULT_MAX_POOLED);
+    }
+
+    public ChunkedDeflater(int level, int maxPooled) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 0 and 9");
+        }
+        if (maxPooled <= 0) {
+            throw new IllegalArgumentException("maxPooled must be positive");
+        }
+        this.level = level;
+        this.zlibPool = new ArrayBlockingQueue<PooledDeflater>(maxPooled);
+        this.gzipPool = new ArrayBlockingQueue<PooledDeflater>(maxPooled);
+    }
+
+    /**
+     * Compresses {@code src} into {@code dst} as a zlib stream (the "deflate" content coding).
+     */
+    public void deflate(ChunkedByteArray src, ChunkedByteArray dst) throws IOException {
+        Stream stream = open(dst, false);
+        stream.write(src);
+        stream.close();
+    }
+
+    /**
+     * Compresses {@code src} into {@code dst} in gzip format.
+     */
+    public void gzip(ChunkedByteArray src, ChunkedByteArray dst) throws IOException {
+        Stream stream = open(dst, true);
+        stream.write(src);
+        stream.close();
+    }
+
+    /**
+     * Compresses {@code src} into {@code channel} in gzip format.
+     */
+    public void gzip(ChunkedByteArray src, WritableByteChannel channel) throws IOException {
+        Stream stream = open(channel, true);
+        stream.write(src);
+        stream.close();
+    }
+
+    /**
+     * Starts an incremental compression into {@code dst}. The stream must be closed to write the end of the
+     * compressed data and give its deflater back to the pool.
+     *
+     * @param gzip whether to produce gzip rather than zlib format
+     */
+    public Stream open(ChunkedByteArray dst, boolean gzip) throws IOException {
+        if (dst == null) {
+            throw new IllegalArgumentException("dst: may not be null.");
+        }
+        return new Stream(this, acquire(gzip), gzip, dst, null);
+    }
+
+    /**
+     * Starts an incremental compression into {@code channel}. The stream must be closed to write the end of the
+     * compressed data and give its deflater back to the pool.
+     *
+     * @param gzip whether to produce gzip rather than zlib format
+     */
+    public Stream open(WritableByteChannel channel, boolean gzip) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel: may not be null.");
+        }
+        return new Stream(this, acquire(gzip), gzip, null, channel);
+    }
+
+    /**
+     * @return the number of deflaters currently idle in the pools
+     */
+    public int getPooledCount() {
+        return zlibPool.size() + gzipPool.size();
+    }
+
+    private PooledDeflater acquire(boolean gzip) {
+        PooledDeflater pooled = (gzip ? gzipPool : zlibPool).poll();
+        if (pooled == null) {
+            pooled = new PooledDeflater(new Deflater(level, gzip));
+        }
+        return pooled;
+    }
+
+    private void release(PooledDeflater pooled, boolean gzip) {
+        pooled.deflater.reset();
+        if (!(gzip ? gzipPool : zlibPool).offer(pooled)) {
+            pooled.deflater.end();
+        }
+    }
+
+    private static class PooledDeflater {
+        private final Deflater deflater;
+        private byte[] channelBuffer;
+
+        private PooledDeflater(Deflater deflater) {
+            this.deflater = deflater;
+        }
+    }
+
+    /**
+     * An incremental compression. {@link #flush()} performs a sync flush and {@link #close()} finishes the compressed
+     * data; neither closes the underlying channel.
+     */
+    public static final class Stream extends OutputStream {
+        private final ChunkedDeflater owner;
+        private final boolean gzip;
+        private final ChunkedByteArray dst;
+        private final WritableByteChannel channel;
+        private final CRC32 crc;
+        private final byte[] single = new byte[1];
+        private PooledDeflater pooled;
+        private Deflater deflater;
+
+        private Stream(ChunkedDeflater owner, PooledDeflater pooled, boolean gzip, ChunkedByteArray dst,
+                       WritableByteChannel channel) throws IOException {
+            this.owner = owner;
+            this.pooled = pooled;
+            this.deflater = pooled.deflater;
+            this.gzip = gzip;
+            this.dst = dst;
+            this.channel = channel;
+            this.crc = gzip ? new CRC32() : null;
+            if (channel != null && pooled.channelBuffer == null) {
+                pooled.channelBuffer = new byte[CHANNEL_BUFFER_SIZE];
+            }
+            if (gzip) {
+                writeRaw(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (deflater == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (off > b.length) || (len < 0) ||
+                ((off + len) > b.length) || ((off + len) < 0)) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureOpen();
+            if (len == 0) {
+                return;
+            }
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Compresses the content of {@code src} chunk by chunk.
+         */
+        public void write(ChunkedByteArray src) throws IOException {
+            if (src == null) {
+                throw new IllegalArgumentException("src: may not be null.");
+            }
+            for (int i = 0, n = src.filledChunkCount(); i < n; i++) {
+                write(src.chunkAt(i), 0, src.filledLength(i));
+            }
+        }
+
+        /**
+         * Sync-flushes the compressed data, so that the receiving end can decompress everything written so far.
+         */
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            while (deflate(Deflater.SYNC_FLUSH)) {
+                // the output space was filled up, there may be more
+            }
+        }
+
+        /**
+         * Writes the end of the compressed data and gives the deflater back to the pool.
+         */
+        @Override
+        public void close() throws IOException {
+            if (deflater == null) {
+                return;
+            }
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    byte[] trailer = new byte[8];
+                    writeIntLE(trailer, 0, (int) crc.getValue());
+                    writeIntLE(trailer, 4, (int) deflater.getBytesRead());
+                    writeRaw(trailer, 0, trailer.length);
+                }
+            } finally {
+                owner.release(pooled, gzip);
+                pooled = null;
+                deflater = null;
+            }
+        }
+
+        /**
+         * Runs the deflater once into the free space of the destination.
+         *
+         * @return whether the output space was filled up
+         */
+        private boolean deflate(int flush) throws IOException {
+            if (dst != null) {
+                int free = dst.ensureWritable(1);
+                int len = deflater.deflate(dst.writableChunk(), dst.writablePos(), free, flush);
+                dst.commit(len);
+                return len == free;
+            }
+            byte[] buf = pooled.channelBuffer;
+            int len = deflater.deflate(buf, 0, buf.length, flush);
+            writeToChannel(buf, 0, len);
+            return len == buf.length;
+        }
+
+        private void writeRaw(byte[] b, int off, int len) throws IOException {
+            if (dst != null) {
+                dst.append(b, off, len);
+            } else {
+                writeToChannel(b, off, len);
+            }
+        }
+
+        private void writeToChannel(byte[] b, int off, int len) throws IOException {
+            ChunkedFileContent.writeFully(channel, ByteBuffer.wrap(b, off, len));
+        }
+
+        private static void writeIntLE(byte[] b, int off, int value) {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >> 8);
+            b[off + 2] = (byte) (value >> 16);
+            b[off + 3] = (byte) (value >> 24);
+        }
+    }
+}
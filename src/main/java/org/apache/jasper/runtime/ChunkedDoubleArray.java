@@ -0,0 +1,148 @@
+package org.apache.jasper.runtime;
+
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An append-only sequence of {@code double} values kept in chunks, with the growth policy of {@link ChunkedByteArray}:
+ * growing never copies what is already there, and values are never boxed. Indexed access finds the chunk by binary
+ * search over the chunk offsets.
+ */
+public class ChunkedDoubleArray extends ChunkedPrimitiveArray<double[]> {
+    public static final int DEFAULT_INITIAL_CAPACITY = 512;
+    public static final double DEFAULT_GROWTH_FACTOR = 1.5;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+
+    public ChunkedDoubleArray() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ChunkedDoubleArray(int initialCapacity) {
+        this(initialCapacity, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public ChunkedDoubleArray(int initialCapacity, int maxChunkSize) {
+        this(initialCapacity, maxChunkSize, DEFAULT_GROWTH_FACTOR);
+    }
+
+    public ChunkedDoubleArray(int initialCapacity, int maxChunkSize, double growthFactor) {
+        super(initialCapacity, maxChunkSize, growthFactor, 8);
+    }
+
+    @Override
+    double[] newChunk(int size) {
+        return new double[size];
+    }
+
+    @Override
+    int lengthOf(double[] array) {
+        return array.length;
+    }
+
+    public void append(double value) {
+        ensureCanGrow(1);
+        ensureCurrentChunkHasCapacity(1);
+        currentChunk[posInCurrentChunk++] = value;
+        this.count++;
+    }
+
+    public void append(double[] values, int start, int length) throws IllegalArgumentException {
+        appendValues(values, start, length);
+    }
+
+    public double get(int index) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        return chunks.get(idx)[index - chunkOffsets[idx]];
+    }
+
+    public void set(int index, double value) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        chunks.get(idx)[index - chunkOffsets[idx]] = value;
+    }
+
+    /**
+     * Copies the values from {@code srcBegin} up to {@code srcEnd} into {@code dst} at {@code dstBegin}, chunk by
+     * chunk.
+     */
+    public void get(int srcBegin, int srcEnd, double[] dst, int dstBegin) {
+        getValues(srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    public double[] toArray() {
+        double[] result = new double[count];
+        getValues(0, count, result, 0);
+        return result;
+    }
+
+    /**
+     * @return an iterator over the values, which must not be used after {@link #clear()}
+     */
+    public PrimitiveIterator.OfDouble iterator() {
+        return new ChunkedDoubleIterator();
+    }
+
+    /**
+     * @return a spliterator over the values, which splits on chunk boundaries for parallel processing
+     */
+    public Spliterator.OfDouble spliterator() {
+        List<double[]> chunks = filledChunks();
+        int n = chunks.size();
+        return new ChunkedDoubleSpliterator(chunks.toArray(new double[n][]), filledLengths(), 0, 0, n, count);
+    }
+
+    /**
+     * @return a stream of the values, which can be made {@link DoubleStream#parallel() parallel}
+     */
+    public DoubleStream stream() {
+        return StreamSupport.doubleStream(spliterator(), false);
+    }
+
+    private class ChunkedDoubleIterator extends ChunkIterator implements PrimitiveIterator.OfDouble {
+        public double nextDouble() {
+            advance();
+            return chunk[pos];
+        }
+    }
+
+    private static class ChunkedDoubleSpliterator extends ChunkSpliterator<double[], DoubleConsumer>
+            implements Spliterator.OfDouble {
+        private ChunkedDoubleSpliterator(double[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                         long remaining) {
+            super(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        void accept(DoubleConsumer action, double[] chunk, int start, int end) {
+            for (int i = start; i < end; i++) {
+                action.accept(chunk[i]);
+            }
+        }
+
+        @Override
+        ChunkedDoubleSpliterator split(double[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                       long remaining) {
+            return new ChunkedDoubleSpliterator(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        public boolean tryAdvance(DoubleConsumer action) {
+            return advance(action);
+        }
+
+        @Override
+        public void forEachRemaining(DoubleConsumer action) {
+            advanceAll(action);
+        }
+
+        @Override
+        public Spliterator.OfDouble trySplit() {
+            return (Spliterator.OfDouble) splitPrefix();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.apache.jasper.runtime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content made of {@link ChunkedByteArray} chunks and regions of files, for instance header bytes, then a static
+ * file, then trailer bytes. The chunks are taken over as they are and the file regions are memory mapped read-only,
+ * so building the content copies nothing.
+ * <p>
+ * {@link #writeTo(WritableByteChannel)} sends the file regions with {@link FileChannel#transferTo}, which for a
+ * file or socket target lets the operating system move the bytes without them ever passing through the heap.
+ * {@link #close()} closes the files.
+ */
+public class ChunkedFileContent implements Closeable {
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final List<FileChannel> files = new ArrayList<FileChannel>();
+    private long length;
+
+    /**
+     * Adds the current content of {@code bytes}. Its chunks are referenced rather than copied, so it must not be
+     * truncated or cleared while this content is in use; appending to it is fine.
+     */
+    public void append(ChunkedByteArray bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("bytes: may not be null.");
+        }
+        for (int i = 0, n = bytes.filledChunkCount(); i < n; i++) {
+            int len = bytes.filledLength(i);
+            if (len > 0) {
+                segments.add(new Segment(ByteBuffer.wrap(bytes.chunkAt(i), 0, len).slice(), null, 0));
+                length += len;
+            }
+        }
+    }
+
+    /**
+     * Adds {@code length} bytes of {@code path} starting at {@code offset}, memory mapped read-only. The file is kept
+     * open until {@link #close()}.
+     */
+    public void mapFile(Path path, long offset, long length) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("path: may not be null.");
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length may not be negative");
+        }
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (offset + length > file.size()) {
+                throw new IllegalArgumentException("offset + length is beyond the end of " + path);
+            }
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        map(file, offset, length);
+    }
+
+    /**
+     * Adds the whole of {@code path}.
+     */
+    public void mapFile(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("path: may not be null.");
+        }
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        long size;
+        try {
+            size = file.size();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        map(file, 0, size);
+    }
+
+    private void map(FileChannel file, long offset, long length) throws IOException {
+        files.add(file);
+        while (length > 0) {
+            // a single mapping can't be larger than Integer.MAX_VALUE
+            long regionLength = Math.min(length, Integer.MAX_VALUE);
+            MappedByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, offset, regionLength);
+            segments.add(new Segment(region, file, offset));
+            this.length += regionLength;
+            offset += regionLength;
+            length -= regionLength;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Writes the content to {@code target}, the file regions through {@link FileChannel#transferTo}.
+     */
+    public void writeTo(WritableByteChannel target) throws IOException {
+        if (target == null) {
+            throw new IllegalArgumentException("target: may not be null.");
+        }
+        for (Segment segment : segments) {
+            if (segment.file != null) {
+                long position = segment.position;
+                long end = position + segment.buffer.capacity();
+                while (position < end) {
+                    long transferred = segment.file.transferTo(position, end - position, target);
+                    if (transferred > 0) {
+                        position += transferred;
+                    } else {
+                        awaitWritable(target);
+                    }
+                }
+            } else {
+                writeFully(target, segment.buffer.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Writes the content to {@code outputStream}. The chunks are written as they are, the file regions have to be
+     * copied through a small buffer.
+     */
+    public void writeOut(OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("outputStream: may not be null.");
+        }
+        byte[] copyBuffer = null;
+        for (Segment segment : segments) {
+            ByteBuffer buffer = segment.buffer;
+            if (buffer.hasArray()) {
+                outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+                continue;
+            }
+            if (copyBuffer == null) {
+                copyBuffer = new byte[COPY_BUFFER_SIZE];
+            }
+            ByteBuffer region = buffer.duplicate();
+            while (region.hasRemaining()) {
+                int len = Math.min(region.remaining(), copyBuffer.length);
+                region.get(copyBuffer, 0, len);
+                outputStream.write(copyBuffer, 0, len);
+            }
+        }
+    }
+
+    /**
+     * Closes the mapped files and lets go of the chunks and regions. The content can't be written afterwards. Java has
+     * no way to unmap a region explicitly, so the mappings themselves go when the garbage collector reclaims them.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        files.clear();
+        segments.clear();
+        length = 0;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes all of {@code buffer} to {@code target}, waiting for a non-blocking target to become writable when it
+     * takes no bytes. Also used by the other channel writers of this package.
+     */
+    static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (target.write(buffer) == 0) {
+                awaitWritable(target);
+            }
+        }
+    }
+
+    /**
+     * Waits for a non-blocking target that took no bytes to become writable again. Any other target that takes no
+     * bytes is broken, so that fails rather than spinning.
+     */
+    static void awaitWritable(WritableByteChannel target) throws IOException {
+        if (!(target instanceof SelectableChannel) || ((SelectableChannel) target).isBlocking()) {
+            throw new IOException("The target channel accepted no bytes");
+        }
+        Selector selector = Selector.open();
+        try {
+            ((SelectableChannel) target).register(selector, SelectionKey.OP_WRITE);
+            selector.select();
+        } finally {
+            selector.close();
+        }
+    }
+
+    private static class Segment {
+        private final ByteBuffer buffer;
+        // the file and position a mapped region comes from, null for chunks
+        private final FileChannel file;
+        private final long position;
+
+        private Segment(ByteBuffer buffer, FileChannel file, long position) {
+            this.buffer = buffer;
+            this.file = file;
+            this.position = position;
+        }
+    }
+}
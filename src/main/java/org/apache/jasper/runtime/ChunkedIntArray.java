@@ -0,0 +1,148 @@
+package org.apache.jasper.runtime;
+
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An append-only sequence of {@code int} values kept in chunks, with the growth policy of {@link ChunkedByteArray}:
+ * growing never copies what is already there, and values are never boxed. Indexed access finds the chunk by binary
+ * search over the chunk offsets.
+ */
+public class ChunkedIntArray extends ChunkedPrimitiveArray<int[]> {
+    public static final int DEFAULT_INITIAL_CAPACITY = 512;
+    public static final double DEFAULT_GROWTH_FACTOR = 1.5;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+
+    public ChunkedIntArray() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ChunkedIntArray(int initialCapacity) {
+        this(initialCapacity, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public ChunkedIntArray(int initialCapacity, int maxChunkSize) {
+        this(initialCapacity, maxChunkSize, DEFAULT_GROWTH_FACTOR);
+    }
+
+    public ChunkedIntArray(int initialCapacity, int maxChunkSize, double growthFactor) {
+        super(initialCapacity, maxChunkSize, growthFactor, 4);
+    }
+
+    @Override
+    int[] newChunk(int size) {
+        return new int[size];
+    }
+
+    @Override
+    int lengthOf(int[] array) {
+        return array.length;
+    }
+
+    public void append(int value) {
+        ensureCanGrow(1);
+        ensureCurrentChunkHasCapacity(1);
+        currentChunk[posInCurrentChunk++] = value;
+        this.count++;
+    }
+
+    public void append(int[] values, int start, int length) throws IllegalArgumentException {
+        appendValues(values, start, length);
+    }
+
+    public int get(int index) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        return chunks.get(idx)[index - chunkOffsets[idx]];
+    }
+
+    public void set(int index, int value) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        chunks.get(idx)[index - chunkOffsets[idx]] = value;
+    }
+
+    /**
+     * Copies the values from {@code srcBegin} up to {@code srcEnd} into {@code dst} at {@code dstBegin}, chunk by
+     * chunk.
+     */
+    public void get(int srcBegin, int srcEnd, int[] dst, int dstBegin) {
+        getValues(srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    public int[] toArray() {
+        int[] result = new int[count];
+        getValues(0, count, result, 0);
+        return result;
+    }
+
+    /**
+     * @return an iterator over the values, which must not be used after {@link #clear()}
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new ChunkedIntIterator();
+    }
+
+    /**
+     * @return a spliterator over the values, which splits on chunk boundaries for parallel processing
+     */
+    public Spliterator.OfInt spliterator() {
+        List<int[]> chunks = filledChunks();
+        int n = chunks.size();
+        return new ChunkedIntSpliterator(chunks.toArray(new int[n][]), filledLengths(), 0, 0, n, count);
+    }
+
+    /**
+     * @return a stream of the values, which can be made {@link IntStream#parallel() parallel}
+     */
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    private class ChunkedIntIterator extends ChunkIterator implements PrimitiveIterator.OfInt {
+        public int nextInt() {
+            advance();
+            return chunk[pos];
+        }
+    }
+
+    private static class ChunkedIntSpliterator extends ChunkSpliterator<int[], IntConsumer>
+            implements Spliterator.OfInt {
+        private ChunkedIntSpliterator(int[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                      long remaining) {
+            super(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        void accept(IntConsumer action, int[] chunk, int start, int end) {
+            for (int i = start; i < end; i++) {
+                action.accept(chunk[i]);
+            }
+        }
+
+        @Override
+        ChunkedIntSpliterator split(int[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                    long remaining) {
+            return new ChunkedIntSpliterator(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            return advance(action);
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            advanceAll(action);
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            return (Spliterator.OfInt) splitPrefix();
+        }
+    }
+}
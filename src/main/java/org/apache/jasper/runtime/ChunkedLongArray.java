@@ -0,0 +1,148 @@
+package org.apache.jasper.runtime;
+
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An append-only sequence of {@code long} values kept in chunks, with the growth policy of {@link ChunkedByteArray}:
+ * growing never copies what is already there, and values are never boxed. Indexed access finds the chunk by binary
+ * search over the chunk offsets.
+ */
+public class ChunkedLongArray extends ChunkedPrimitiveArray<long[]> {
+    public static final int DEFAULT_INITIAL_CAPACITY = 512;
+    public static final double DEFAULT_GROWTH_FACTOR = 1.5;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+
+    public ChunkedLongArray() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ChunkedLongArray(int initialCapacity) {
+        this(initialCapacity, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public ChunkedLongArray(int initialCapacity, int maxChunkSize) {
+        this(initialCapacity, maxChunkSize, DEFAULT_GROWTH_FACTOR);
+    }
+
+    public ChunkedLongArray(int initialCapacity, int maxChunkSize, double growthFactor) {
+        super(initialCapacity, maxChunkSize, growthFactor, 8);
+    }
+
+    @Override
+    long[] newChunk(int size) {
+        return new long[size];
+    }
+
+    @Override
+    int lengthOf(long[] array) {
+        return array.length;
+    }
+
+    public void append(long value) {
+        ensureCanGrow(1);
+        ensureCurrentChunkHasCapacity(1);
+        currentChunk[posInCurrentChunk++] = value;
+        this.count++;
+    }
+
+    public void append(long[] values, int start, int length) throws IllegalArgumentException {
+        appendValues(values, start, length);
+    }
+
+    public long get(int index) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        return chunks.get(idx)[index - chunkOffsets[idx]];
+    }
+
+    public void set(int index, long value) {
+        checkIndex(index);
+        int idx = chunkIndexOf(index);
+        chunks.get(idx)[index - chunkOffsets[idx]] = value;
+    }
+
+    /**
+     * Copies the values from {@code srcBegin} up to {@code srcEnd} into {@code dst} at {@code dstBegin}, chunk by
+     * chunk.
+     */
+    public void get(int srcBegin, int srcEnd, long[] dst, int dstBegin) {
+        getValues(srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    public long[] toArray() {
+        long[] result = new long[count];
+        getValues(0, count, result, 0);
+        return result;
+    }
+
+    /**
+     * @return an iterator over the values, which must not be used after {@link #clear()}
+     */
+    public PrimitiveIterator.OfLong iterator() {
+        return new ChunkedLongIterator();
+    }
+
+    /**
+     * @return a spliterator over the values, which splits on chunk boundaries for parallel processing
+     */
+    public Spliterator.OfLong spliterator() {
+        List<long[]> chunks = filledChunks();
+        int n = chunks.size();
+        return new ChunkedLongSpliterator(chunks.toArray(new long[n][]), filledLengths(), 0, 0, n, count);
+    }
+
+    /**
+     * @return a stream of the values, which can be made {@link LongStream#parallel() parallel}
+     */
+    public LongStream stream() {
+        return StreamSupport.longStream(spliterator(), false);
+    }
+
+    private class ChunkedLongIterator extends ChunkIterator implements PrimitiveIterator.OfLong {
+        public long nextLong() {
+            advance();
+            return chunk[pos];
+        }
+    }
+
+    private static class ChunkedLongSpliterator extends ChunkSpliterator<long[], LongConsumer>
+            implements Spliterator.OfLong {
+        private ChunkedLongSpliterator(long[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                       long remaining) {
+            super(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        void accept(LongConsumer action, long[] chunk, int start, int end) {
+            for (int i = start; i < end; i++) {
+                action.accept(chunk[i]);
+            }
+        }
+
+        @Override
+        ChunkedLongSpliterator split(long[][] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                     long remaining) {
+            return new ChunkedLongSpliterator(chunks, lengths, chunkIdx, pos, fence, remaining);
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            return advance(action);
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            advanceAll(action);
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            return (Spliterator.OfLong) splitPrefix();
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chunked character pipe: one thread writes, another thread consumes through {@link #getReader()} while the
+ * content is still being produced.
+ * <p>
+ * Chunks are laid out and grown like in {@link ChunkedBuffer}. A chunk becomes visible to the reader once the writer
+ * has filled it (it is sealed), or earlier when {@link #flush()} publishes the partial tail chunk. The reader parks
+ * until there is something to read and drops every chunk it has fully consumed, so the pipe only holds on to the
+ * content between the last flush the reader has caught up with and the writer's position.
+ * <p>
+ * A pipe can also be bounded to {@code maxSize} chars held in chunks, which turns it into a FIFO for long-running
+ * streams such as log capture. When the bound is reached the writer either waits for the reader to catch up
+ * ({@link OverflowPolicy#BLOCK}) or discards the oldest unread chunks ({@link OverflowPolicy#DROP_OLDEST}), so memory
+ * is proportional to the unread backlog rather than to everything that went through the pipe. The bound is never
+ * enforced below two chunks. Chunks released by the reader are recycled for the writer.
+ * <p>
+ * Like the other chunked buffers, a pipe reserves its chunks against the {@link BufferMemoryManager} installed when it
+ * was created, and gives their memory back as the reader consumes them, so an unbounded pipe still counts towards
+ * the budget. The writer waits for a reservation outside of the pipe's lock, so the reader can go on releasing chunks
+ * in the meantime.
+ * <p>
+ * Waiting is done with a {@link ReentrantLock} and its {@link Condition}s, never with a monitor, so both ends can run
+ * on virtual threads without pinning their carrier.
+ */
+public class ChunkedPipe extends Writer {
+    public enum OverflowPolicy {
+        /**
+         * The writer waits until the reader has released enough chunks.
+         */
+        BLOCK,
+        /**
+         * The oldest unread chunks are discarded to make room, like a ring buffer.
+         */
+        DROP_OLDEST
+    }
+
+    private final double growthFactor;
+    private final int maxChunkSize;
+    private final int maxSize;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ReentrantLock pipeLock = new ReentrantLock();
+    private final Condition readable = pipeLock.newCondition();
+    private final Condition writable = pipeLock.newCondition();
+
+    // guarded by pipeLock: the chunks the reader has not consumed yet, the last one being the writer's current chunk
+    private final Deque<char[]> chunks = new ArrayDeque<char[]>();
+    private int publishedInTail;
+    private int size;
+    private long droppedChars;
+    private char[] spareChunk;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    // only touched by the writer
+    private char[] currentChunk;
+    private int posInCurrentChunk;
+    private int allocated;
+    private boolean closed;
+
+    private ChunkedPipeReader reader;
+
+    // the memory manager reservation for the chunks, null when no manager was installed at construction
+    private BufferMemoryManager.Lease lease;
+
+    public ChunkedPipe() {
+        this(ChunkedBuffer.DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ChunkedPipe(int initialCapacity) {
+        this(initialCapacity, ChunkedBuffer.DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public ChunkedPipe(int initialCapacity, int maxChunkSize) {
+        this(initialCapacity, maxChunkSize, ChunkedBuffer.DEFAULT_GROWTH_FACTOR);
+    }
+
+    public ChunkedPipe(int initialCapacity, int maxChunkSize, double growthFactor) {
+        this(initialCapacity, maxChunkSize, growthFactor, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    public ChunkedPipe(int initialCapacity, int maxChunkSize, double growthFactor, int maxSize,
+                       OverflowPolicy overflowPolicy) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("initialCapacity must be positive");
+        }
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("growthFactor must be at least 1");
+        }
+        if (maxChunkSize < initialCapacity) {
+            throw new IllegalArgumentException("maxChunkSize must be at least as large as initialCapacity");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy: may not be null.");
+        }
+        this.growthFactor = growthFactor;
+        this.maxChunkSize = maxChunkSize;
+        this.maxSize = maxSize;
+        this.overflowPolicy = overflowPolicy;
+
+        BufferMemoryManager manager = BufferMemoryManager.getGlobal();
+        if (manager != null) {
+            this.lease = manager.register(this);
+            lease.reserve(initialCapacity * 2L);
+        }
+        this.currentChunk = new char[initialCapacity];
+        this.allocated = initialCapacity;
+        this.size = initialCapacity;
+        this.chunks.add(currentChunk);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        ensureCurrentChunkHasCapacity();
+        currentChunk[posInCurrentChunk++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if ((off < 0) || (off > cbuf.length) || (len < 0) ||
+            ((off + len) > cbuf.length) || ((off + len) < 0)) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            int charsToCopy = ensureCurrentChunkHasCapacity();
+            if (charsToCopy > len) {
+                charsToCopy = len;
+            }
+            System.arraycopy(cbuf, off, currentChunk, posInCurrentChunk, charsToCopy);
+            off += charsToCopy;
+            len -= charsToCopy;
+            posInCurrentChunk += charsToCopy;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > str.length() || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            int charsToCopy = ensureCurrentChunkHasCapacity();
+            if (charsToCopy > len) {
+                charsToCopy = len;
+            }
+            str.getChars(off, off + charsToCopy, currentChunk, posInCurrentChunk);
+            off += charsToCopy;
+            len -= charsToCopy;
+            posInCurrentChunk += charsToCopy;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Pipe closed");
+        }
+    }
+
+    /**
+     * Seals the current chunk when it is full and starts a new one, making room for it first if the pipe is bounded.
+     *
+     * @return the number of chars that can be written into {@code currentChunk}
+     */
+    private int ensureCurrentChunkHasCapacity() throws IOException {
+        int currentChunkCapacity = currentChunk.length - posInCurrentChunk;
+        if (currentChunkCapacity > 0) {
+            return currentChunkCapacity;
+        }
+        int size = (int) (allocated * growthFactor) - allocated;
+        if (size < ChunkedBuffer.MIN_CHUNK_SIZE) {
+            size = ChunkedBuffer.MIN_CHUNK_SIZE;
+        }
+        if (size > maxChunkSize) {
+            size = maxChunkSize;
+        }
+        char[] chunk = null;
+        pipeLock.lock();
+        try {
+            ensureWritable();
+            if (this.size + size > maxSize && chunks.size() > 1) {
+                // the reader may need the full tail chunk before it can release anything
+                publishedInTail = posInCurrentChunk;
+                readable.signalAll();
+                makeRoom(size);
+            }
+            if (spareChunk != null && spareChunk.length == size) {
+                chunk = spareChunk;
+                spareChunk = null;
+            } else if (lease != null) {
+                // the reservation may wait for the reader to release chunks, which may need the full tail chunk
+                publishedInTail = posInCurrentChunk;
+                readable.signalAll();
+            }
+        } finally {
+            pipeLock.unlock();
+        }
+        if (chunk == null) {
+            if (lease != null) {
+                lease.reserve(size * 2L);
+            }
+            chunk = new char[size];
+        }
+        pipeLock.lock();
+        try {
+            if (readerClosed) {
+                giveBack(chunk);
+                ensureWritable();
+            }
+            allocated += size;
+            this.size += size;
+            chunks.add(chunk);
+            publishedInTail = 0;
+            readable.signalAll();
+        } finally {
+            pipeLock.unlock();
+        }
+        currentChunk = chunk;
+        posInCurrentChunk = 0;
+        return size;
+    }
+
+    private void makeRoom(int size) throws IOException {
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            while (this.size + size > maxSize && chunks.size() > 1) {
+                char[] dropped = chunks.removeFirst();
+                this.size -= dropped.length;
+                droppedChars += dropped.length;
+                giveBack(dropped);
+            }
+            return;
+        }
+        try {
+            while (this.size + size > maxSize && chunks.size() > 1) {
+                writable.await();
+                ensureWritable();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the reader");
+        }
+    }
+
+    /**
+     * Gives the memory of a chunk the pipe lets go of back to the memory manager; called with the pipe lock held.
+     */
+    private void giveBack(char[] chunk) {
+        if (lease != null) {
+            lease.release(chunk.length * 2L);
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        if (writerClosed) {
+            throw new IOException("Pipe closed");
+        }
+        if (readerClosed) {
+            throw new IOException("Pipe closed by reader");
+        }
+    }
+
+    /**
+     * Publishes everything written so far to the reader.
+     */
+    @Override
+    public void flush() throws IOException {
+        pipeLock.lock();
+        try {
+            ensureWritable();
+            if (publishedInTail != posInCurrentChunk) {
+                publishedInTail = posInCurrentChunk;
+                readable.signalAll();
+            }
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes everything written so far; the reader sees the end of the stream once it has consumed it.
+     */
+    @Override
+    public void close() throws IOException {
+        pipeLock.lock();
+        try {
+            if (writerClosed) {
+                return;
+            }
+            publishedInTail = posInCurrentChunk;
+            writerClosed = closed = true;
+            readable.signalAll();
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of chars currently held in chunks, consumed or not
+     */
+    public int size() {
+        pipeLock.lock();
+        try {
+            return size;
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of chars discarded so far by {@link OverflowPolicy#DROP_OLDEST}, counted a whole chunk at a
+     *         time when it is dropped
+     */
+    public long getDroppedChars() {
+        pipeLock.lock();
+        try {
+            return droppedChars;
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    /**
+     * Moves everything published so far to {@code out} without waiting for more, releasing the drained chunks. Must
+     * be called from the thread consuming the pipe, as it shares the position of {@link #getReader()}.
+     *
+     * @return the number of chars written to {@code out}, or -1 if the writer has closed the pipe and all of its
+     *         content has been consumed
+     */
+    public long drainTo(Writer out) throws IOException {
+        return ((ChunkedPipeReader) getReader()).drainTo(out);
+    }
+
+    /**
+     * @return the reading end of this pipe; there is only one
+     */
+    public Reader getReader() {
+        pipeLock.lock();
+        try {
+            if (reader == null) {
+                reader = new ChunkedPipeReader();
+            }
+            return reader;
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    private class ChunkedPipeReader extends Reader {
+        private char[] headChunk;
+        private int posInHeadChunk;
+        private int limitInHeadChunk;
+
+        private ChunkedPipeReader() {
+            super(pipeLock);
+        }
+
+        /**
+         * Makes sure the head chunk has unread chars, waiting for the writer if necessary.
+         *
+         * @return the number of chars readable from {@code headChunk}, 0 if there are none and {@code wait} is false,
+         *         or -1 at the end of the stream
+         */
+        private int awaitReadable(boolean wait) throws IOException {
+            if (posInHeadChunk < limitInHeadChunk) {
+                return limitInHeadChunk - posInHeadChunk;
+            }
+            pipeLock.lock();
+            try {
+                while (true) {
+                    if (readerClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    char[] head = chunks.peekFirst();
+                    if (head != headChunk) {
+                        // a chunk read up to its end is released here
+                        headChunk = head;
+                        posInHeadChunk = 0;
+                    }
+                    boolean tail = chunks.size() == 1;
+                    limitInHeadChunk = tail ? publishedInTail : head.length;
+                    if (posInHeadChunk < limitInHeadChunk) {
+                        return limitInHeadChunk - posInHeadChunk;
+                    }
+                    if (!tail) {
+                        release(chunks.removeFirst());
+                    } else if (writerClosed) {
+                        return -1;
+                    } else if (!wait) {
+                        return 0;
+                    } else {
+                        readable.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the writer");
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+
+        private void release(char[] chunk) {
+            size -= chunk.length;
+            if (chunk.length == maxChunkSize) {
+                if (spareChunk != null) {
+                    giveBack(spareChunk);
+                }
+                spareChunk = chunk;
+            } else {
+                giveBack(chunk);
+            }
+            writable.signalAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (awaitReadable(true) < 0) {
+                return -1;
+            }
+            return headChunk[posInHeadChunk++];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if ((off < 0) || (off > cbuf.length) || (len < 0) ||
+                ((off + len) > cbuf.length) || ((off + len) < 0)) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            int charsToCopy = awaitReadable(true);
+            if (charsToCopy < 0) {
+                return -1;
+            }
+            if (charsToCopy > len) {
+                charsToCopy = len;
+            }
+            System.arraycopy(headChunk, posInHeadChunk, cbuf, off, charsToCopy);
+            posInHeadChunk += charsToCopy;
+            return charsToCopy;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n < 0L) {
+                throw new IllegalArgumentException("skip value is negative");
+            }
+            long skipped = 0;
+            while (skipped < n) {
+                int charsToSkip = awaitReadable(skipped == 0);
+                if (charsToSkip <= 0) {
+                    break;
+                }
+                if (charsToSkip > n - skipped) {
+                    charsToSkip = (int) (n - skipped);
+                }
+                posInHeadChunk += charsToSkip;
+                skipped += charsToSkip;
+            }
+            return skipped;
+        }
+
+        private long drainTo(Writer out) throws IOException {
+            if (out == null) {
+                throw new IllegalArgumentException("out: may not be null.");
+            }
+            long drained = 0;
+            int charsToCopy;
+            while ((charsToCopy = awaitReadable(false)) > 0) {
+                out.write(headChunk, posInHeadChunk, charsToCopy);
+                posInHeadChunk += charsToCopy;
+                drained += charsToCopy;
+            }
+            return drained == 0 && charsToCopy < 0 ? -1 : drained;
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            if (posInHeadChunk < limitInHeadChunk) {
+                return true;
+            }
+            pipeLock.lock();
+            try {
+                if (readerClosed) {
+                    throw new IOException("Stream closed");
+                }
+                char[] head = chunks.peekFirst();
+                int posInHead = head == headChunk ? posInHeadChunk : 0;
+                if (chunks.size() == 1) {
+                    return posInHead < publishedInTail;
+                }
+                // sealed chunks are never empty
+                return posInHead < head.length || chunks.size() > 2 || publishedInTail > 0;
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pipeLock.lock();
+            try {
+                readerClosed = true;
+                for (char[] chunk : chunks) {
+                    giveBack(chunk);
+                }
+                if (spareChunk != null) {
+                    giveBack(spareChunk);
+                    spareChunk = null;
+                }
+                chunks.clear();
+                size = 0;
+                headChunk = null;
+                posInHeadChunk = limitInHeadChunk = 0;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.apache.jasper.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+
+/**
+ * The chunk bookkeeping shared by {@link ChunkedIntArray}, {@link ChunkedLongArray} and {@link ChunkedDoubleArray}:
+ * the growth policy, the chunk offsets for indexed access, bulk copies, the memory manager reservation, and the chunk
+ * walking of iterators and spliterators. The subclasses add the typed public methods on top, so their erased
+ * signatures stay the same.
+ *
+ * @param <A> the primitive array type of the chunks
+ */
+abstract class ChunkedPrimitiveArray<A> {
+    public static final int MIN_CHUNK_SIZE = 16;
+
+    private final int initialCapacity;
+    private final double growthFactor;
+    private final int maxChunkSize;
+    private final int bytesPerValue;
+
+    final List<A> chunks;
+    // where each chunk starts
+    int[] chunkOffsets;
+
+    int currentChunkIdx = -1;
+    A currentChunk = null;
+    int posInCurrentChunk;
+
+    int count;
+    private int capacity;
+
+    // the memory manager reservation for the chunks, null when no manager was installed at construction
+    private BufferMemoryManager.Lease lease;
+
+    ChunkedPrimitiveArray(int initialCapacity, int maxChunkSize, double growthFactor, int bytesPerValue) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("initialCapacity must be positive");
+        }
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("growthFactor must be at least 1");
+        }
+        if (maxChunkSize < initialCapacity) {
+            throw new IllegalArgumentException("maxChunkSize must be at least as large as initialCapacity");
+        }
+        this.initialCapacity = initialCapacity;
+        this.growthFactor = growthFactor;
+        this.maxChunkSize = maxChunkSize;
+        this.bytesPerValue = bytesPerValue;
+
+        BufferMemoryManager manager = BufferMemoryManager.getGlobal();
+        if (manager != null) {
+            this.lease = manager.register(this);
+        }
+        this.chunks = new ArrayList<A>();
+        this.chunkOffsets = new int[8];
+    }
+
+    abstract A newChunk(int size);
+
+    abstract int lengthOf(A array);
+
+    void appendValues(A values, int start, int length) throws IllegalArgumentException {
+        if (length <= 0) {
+            return;
+        }
+        if (values == null) {
+            throw new IllegalArgumentException("values: may not be null.");
+        }
+        int valuesLength = lengthOf(values);
+        if (start < 0 || start > valuesLength || length > valuesLength - start) {
+            throw new ArrayIndexOutOfBoundsException("start and length must be within the array");
+        }
+
+        ensureCanGrow(length);
+        while (length > 0) {
+            int valuesToCopy = Math.min(ensureCurrentChunkHasCapacity(length), length);
+            System.arraycopy(values, start, currentChunk, posInCurrentChunk, valuesToCopy);
+            start += valuesToCopy;
+            length -= valuesToCopy;
+            this.posInCurrentChunk += valuesToCopy;
+            this.count += valuesToCopy;
+        }
+    }
+
+    /**
+     * Makes room for at least one more value at {@code posInCurrentChunk}, moving on to a new chunk when the current
+     * one is full.
+     *
+     * @param sizeHint the number of values the caller is about to append
+     * @return the number of values that can be written into {@code currentChunk}
+     */
+    int ensureCurrentChunkHasCapacity(int sizeHint) {
+        if (currentChunk != null) {
+            int currentChunkCapacity = lengthOf(currentChunk) - posInCurrentChunk;
+            if (currentChunkCapacity > 0) {
+                return currentChunkCapacity;
+            }
+        }
+        // allocated first, so the writer is left as it was when the memory budget is exceeded
+        A nextChunk = allocateChunk(sizeHint);
+        currentChunkIdx++;
+        currentChunk = nextChunk;
+        posInCurrentChunk = 0;
+        return lengthOf(currentChunk);
+    }
+
+    /**
+     * Allocates and adds a chunk following the growth policy. A request larger than the next regular chunk gets a
+     * single chunk of exactly the requested size.
+     */
+    private A allocateChunk(int sizeHint) {
+        int size = capacity == 0 ? this.initialCapacity : (int) (capacity * growthFactor) - capacity;
+        if (size < MIN_CHUNK_SIZE) {
+            size = MIN_CHUNK_SIZE;
+        }
+        if (size > maxChunkSize) {
+            size = maxChunkSize;
+        }
+        if (sizeHint > size) {
+            size = sizeHint;
+        }
+        if (lease != null) {
+            lease.reserve((long) size * bytesPerValue);
+        }
+        A chunk = newChunk(size);
+        int idx = chunks.size();
+        if (idx == chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, idx * 2);
+        }
+        chunkOffsets[idx] = capacity;
+        chunks.add(chunk);
+        capacity += size;
+        return chunk;
+    }
+
+    void ensureCanGrow(int length) {
+        if (count + length < 0) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * @return the index of the chunk holding the value at {@code index}
+     */
+    int chunkIndexOf(int index) {
+        if (index >= chunkOffsets[currentChunkIdx]) {
+            return currentChunkIdx;
+        }
+        int idx = Arrays.binarySearch(chunkOffsets, 0, currentChunkIdx, index);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    /**
+     * Copies the values from {@code srcBegin} up to {@code srcEnd} into {@code dst} at {@code dstBegin}, chunk by
+     * chunk.
+     */
+    void getValues(int srcBegin, int srcEnd, A dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > count || srcBegin > srcEnd) {
+            throw new ArrayIndexOutOfBoundsException("srcBegin and srcEnd must be within the array");
+        }
+        int length = srcEnd - srcBegin;
+        if (dstBegin < 0 || dstBegin > lengthOf(dst) - length) {
+            throw new ArrayIndexOutOfBoundsException("dstBegin: no room for the values in dst");
+        }
+        if (length == 0) {
+            return;
+        }
+        int idx = chunkIndexOf(srcBegin);
+        int pos = srcBegin - chunkOffsets[idx];
+        while (length > 0) {
+            A chunk = chunks.get(idx++);
+            int valuesToCopy = Math.min(lengthOf(chunk) - pos, length);
+            System.arraycopy(chunk, pos, dst, dstBegin, valuesToCopy);
+            dstBegin += valuesToCopy;
+            length -= valuesToCopy;
+            pos = 0;
+        }
+    }
+
+    public int length() {
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        chunks.clear();
+        currentChunk = null;
+        currentChunkIdx = -1;
+        if (lease != null) {
+            lease.release((long) capacity * bytesPerValue);
+        }
+        capacity = 0;
+        count = 0;
+        posInCurrentChunk = 0;
+    }
+
+    /**
+     * @return the filled chunks, for a spliterator
+     */
+    List<A> filledChunks() {
+        return chunks.subList(0, count == 0 ? 0 : currentChunkIdx + 1);
+    }
+
+    /**
+     * @return the number of values in each of the {@link #filledChunks() filled chunks}
+     */
+    int[] filledLengths() {
+        int n = count == 0 ? 0 : currentChunkIdx + 1;
+        int[] lengths = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            lengths[i] = lengthOf(chunks.get(i));
+        }
+        if (n > 0) {
+            lengths[n - 1] = posInCurrentChunk;
+        }
+        return lengths;
+    }
+
+    /**
+     * Walks the chunks one value at a time; a typed iterator reads the value at {@code pos} in {@code chunk} after
+     * each {@link #advance()}. It must not be used after {@link #clear()}.
+     */
+    class ChunkIterator {
+        private int idx = -1;
+        private int remaining = count;
+        A chunk;
+        int pos;
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        /**
+         * Moves on to the next value, into the next chunk when the current one is done.
+         */
+        void advance() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            if (idx < 0 || ++pos == lengthOf(chunk)) {
+                chunk = chunks.get(++idx);
+                pos = 0;
+            }
+            remaining--;
+        }
+    }
+
+    /**
+     * Splits a snapshot of the filled chunks on chunk boundaries, each half getting about the same number of
+     * values. A typed spliterator hands the values of a chunk to its consumer type and creates the split off
+     * prefixes. The array must not be cleared while the spliterator is in use.
+     *
+     * @param <A> the primitive array type of the chunks
+     * @param <C> the consumer type of the values
+     */
+    abstract static class ChunkSpliterator<A, C> {
+        private final A[] chunks;
+        private final int[] lengths;
+        private int chunkIdx;
+        private int pos;
+        private final int fence;
+        private long remaining;
+
+        ChunkSpliterator(A[] chunks, int[] lengths, int chunkIdx, int pos, int fence, long remaining) {
+            this.chunks = chunks;
+            this.lengths = lengths;
+            this.chunkIdx = chunkIdx;
+            this.pos = pos;
+            this.fence = fence;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Hands the values from {@code start} up to {@code end} in {@code chunk} to {@code action}.
+         */
+        abstract void accept(C action, A chunk, int start, int end);
+
+        abstract ChunkSpliterator<A, C> split(A[] chunks, int[] lengths, int chunkIdx, int pos, int fence,
+                                              long remaining);
+
+        boolean advance(C action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            while (chunkIdx < fence) {
+                if (pos < lengths[chunkIdx]) {
+                    remaining--;
+                    accept(action, chunks[chunkIdx], pos, ++pos);
+                    return true;
+                }
+                chunkIdx++;
+                pos = 0;
+            }
+            return false;
+        }
+
+        void advanceAll(C action) {
+            if (action == null) {
+                throw new NullPointerException();
+            }
+            for (; chunkIdx < fence; chunkIdx++, pos = 0) {
+                accept(action, chunks[chunkIdx], pos, lengths[chunkIdx]);
+            }
+            remaining = 0;
+        }
+
+        /**
+         * @return the chunks that bring the prefix closest to half of what is left, or null when there aren't two
+         * chunks left to split between
+         */
+        ChunkSpliterator<A, C> splitPrefix() {
+            if (fence - chunkIdx < 2) {
+                return null;
+            }
+            int splitIdx = chunkIdx;
+            long prefix = lengths[splitIdx] - pos;
+            while (splitIdx + 2 < fence && 2 * prefix + lengths[splitIdx + 1] < remaining) {
+                splitIdx++;
+                prefix += lengths[splitIdx];
+            }
+            ChunkSpliterator<A, C> head = split(chunks, lengths, chunkIdx, pos, splitIdx + 1, prefix);
+            chunkIdx = splitIdx + 1;
+            pos = 0;
+            remaining -= prefix;
+            return head;
+        }
+
+        public long estimateSize() {
+            return remaining;
+        }
+
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.apache.jasper.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message pattern parsed once, for {@link ChunkedBuffer#appendFormat}. Placeholders are {@code {0}}, {@code {1}}
+ * and so on, replaced with the argument as {@link String#valueOf(Object)} prints it, and quoting works as in
+ * {@link java.text.MessageFormat}: text between single quotes is taken literally, and {@code ''} is a single quote.
+ * There are no format types or styles; numbers are printed without grouping.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class CompiledFormat {
+    private final String pattern;
+    private final char[] text;
+    // per segment: the argument index, or -1 for a literal
+    private final int[] arguments;
+    // per literal segment: where it is in text
+    private final int[] starts;
+    private final int[] lengths;
+    private final int argumentCount;
+
+    private CompiledFormat(String pattern, char[] text, int[] arguments, int[] starts, int[] lengths,
+                           int argumentCount) {
+        this.pattern = pattern;
+        this.text = text;
+        this.arguments = arguments;
+        this.starts = starts;
+        this.lengths = lengths;
+        this.argumentCount = argumentCount;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder is malformed or a quote isn't closed
+     */
+    public static CompiledFormat compile(String pattern) throws IllegalArgumentException {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern: may not be null.");
+        }
+        StringBuilder text = new StringBuilder(pattern.length());
+        List<int[]> segments = new ArrayList<int[]>();
+        int literalStart = 0;
+        int argumentCount = 0;
+        boolean quoted = false;
+        for (int i = 0, len = pattern.length(); i < len; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < len && pattern.charAt(i + 1) == '\'') {
+                    text.append('\'');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                int close = pattern.indexOf('}', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unmatched '{' at " + i + " in " + pattern);
+                }
+                int argument = parseArgument(pattern, i + 1, close);
+                if (text.length() > literalStart) {
+                    segments.add(new int[]{-1, literalStart, text.length() - literalStart});
+                    literalStart = text.length();
+                }
+                segments.add(new int[]{argument, 0, 0});
+                argumentCount = Math.max(argumentCount, argument + 1);
+                i = close;
+            } else {
+                text.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unmatched quote in " + pattern);
+        }
+        if (text.length() > literalStart) {
+            segments.add(new int[]{-1, literalStart, text.length() - literalStart});
+        }
+        int n = segments.size();
+        int[] arguments = new int[n];
+        int[] starts = new int[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            int[] segment = segments.get(i);
+            arguments[i] = segment[0];
+            starts[i] = segment[1];
+            lengths[i] = segment[2];
+        }
+        char[] chars = new char[text.length()];
+        text.getChars(0, chars.length, chars, 0);
+        return new CompiledFormat(pattern, chars, arguments, starts, lengths, argumentCount);
+    }
+
+    private static int parseArgument(String pattern, int start, int end) {
+        if (start == end || end - start > 4) {
+            throw new IllegalArgumentException("Invalid argument index at " + start + " in " + pattern);
+        }
+        int argument = 0;
+        for (int i = start; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid argument index at " + start + " in " + pattern);
+            }
+            argument = argument * 10 + (c - '0');
+        }
+        return argument;
+    }
+
+    /**
+     * @return one more than the highest argument index in the pattern
+     */
+    public int getArgumentCount() {
+        return argumentCount;
+    }
+
+    int segmentCount() {
+        return arguments.length;
+    }
+
+    /**
+     * @return the argument index of the segment, or -1 if it is a literal
+     */
+    int argumentAt(int segment) {
+        return arguments[segment];
+    }
+
+    char[] text() {
+        return text;
+    }
+
+    int literalStart(int segment) {
+        return starts[segment];
+    }
+
+    int literalLength(int segment) {
+        return lengths[segment];
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
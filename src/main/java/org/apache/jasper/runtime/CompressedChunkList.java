@@ -0,0 +1,282 @@
+package org.apache.jasper.runtime;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The chunks of a buffer with {@link ChunkCompression} enabled. Compressed chunks are inflated by {@link #get(int)},
+ * so the buffer and its readers see plain chunks throughout; the inflated copies must not be written to, which is
+ * why the buffer {@link #thawFrom(int) thaws} the chunks it goes back to writing into.
+ * <p>
+ * Readers shared between threads go through {@link #get(int)} too, so all access is guarded by a
+ * {@link ReentrantLock}, like the readers themselves, rather than a monitor that would pin virtual threads.
+ */
+final class CompressedChunkList<T> extends AbstractList<T> implements RandomAccess {
+    private final ChunkCompression compression;
+    private final boolean chars;
+    private final ReentrantLock lock = new ReentrantLock();
+    // a plain chunk, or a Compressed one
+    private final List<Object> entries;
+
+    private final int[] cachedIdx;
+    private final Object[] cachedChunks;
+    private int nextCacheSlot;
+
+    // reused for every chunk: the bytes of a char chunk, and the compressed output
+    private byte[] plainScratch;
+    private byte[] compressedScratch;
+
+    private long savedBytes;
+
+    CompressedChunkList(ChunkCompression compression, boolean chars, List<T> chunks) {
+        this.compression = compression;
+        this.chars = chars;
+        this.entries = new ArrayList<Object>(chunks);
+        this.cachedIdx = new int[compression.getCacheSize()];
+        this.cachedChunks = new Object[compression.getCacheSize()];
+        clearCache();
+    }
+
+    ChunkCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the bytes saved by the chunks compressed at the moment
+     */
+    long getSavedBytes() {
+        lock.lock();
+        try {
+            return savedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compresses the chunk at {@code idx}, unless it already is compressed or doesn't get smaller.
+     *
+     * @return the bytes saved
+     */
+    long compress(int idx) {
+        lock.lock();
+        try {
+            Object entry = entries.get(idx);
+            if (entry instanceof Compressed) {
+                return 0;
+            }
+            byte[] plain;
+            int plainLength;
+            if (chars) {
+                char[] chunk = (char[]) entry;
+                plainLength = chunk.length * 2;
+                plain = plainScratch(plainLength);
+                for (int i = 0, j = 0; i < chunk.length; i++) {
+                    char c = chunk[i];
+                    plain[j++] = (byte) (c >> 8);
+                    plain[j++] = (byte) c;
+                }
+            } else {
+                plain = (byte[]) entry;
+                plainLength = plain.length;
+            }
+            if (compressedScratch == null || compressedScratch.length < plainLength) {
+                compressedScratch = new byte[plainLength];
+            }
+            int len = compression.compress(plain, plainLength, compressedScratch);
+            if (len < 0) {
+                return 0;
+            }
+            Compressed compressed = new Compressed(Arrays.copyOf(compressedScratch, len),
+                    chars ? plainLength / 2 : plainLength);
+            entries.set(idx, compressed);
+            long saved = plainLength - len;
+            savedBytes += saved;
+            return saved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the bytes {@link #thawFrom(int)} would take on top of the compressed chunks
+     */
+    long thawCost(int idx) {
+        lock.lock();
+        try {
+            long cost = 0;
+            for (int i = Math.max(idx, 0), n = entries.size(); i < n; i++) {
+                Object entry = entries.get(i);
+                if (entry instanceof Compressed) {
+                    Compressed compressed = (Compressed) entry;
+                    cost += compressed.plainBytes(chars) - compressed.data.length;
+                }
+            }
+            return cost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turns the chunks from {@code idx} on back into plain ones.
+     *
+     * @return the bytes this takes on top of the compressed chunks
+     */
+    long thawFrom(int idx) {
+        lock.lock();
+        try {
+            long grown = 0;
+            for (int i = Math.max(idx, 0), n = entries.size(); i < n; i++) {
+                Object entry = entries.get(i);
+                if (entry instanceof Compressed) {
+                    Compressed compressed = (Compressed) entry;
+                    entries.set(i, inflate(compressed));
+                    grown += compressed.plainBytes(chars) - compressed.data.length;
+                }
+            }
+            savedBytes -= grown;
+            clearCache();
+            return grown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        lock.lock();
+        try {
+            Object entry = entries.get(index);
+            if (!(entry instanceof Compressed)) {
+                return (T) entry;
+            }
+            for (int i = 0; i < cachedIdx.length; i++) {
+                if (cachedIdx[i] == index) {
+                    return (T) cachedChunks[i];
+                }
+            }
+            Object chunk = inflate((Compressed) entry);
+            cachedIdx[nextCacheSlot] = index;
+            cachedChunks[nextCacheSlot] = chunk;
+            nextCacheSlot = (nextCacheSlot + 1) % cachedIdx.length;
+            return (T) chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object inflate(Compressed compressed) {
+        if (chars) {
+            char[] chunk = new char[compressed.length];
+            byte[] plain = plainScratch(chunk.length * 2);
+            compression.decompress(compressed.data, plain, chunk.length * 2);
+            for (int i = 0, j = 0; i < chunk.length; i++, j += 2) {
+                chunk[i] = (char) (((plain[j] & 0xff) << 8) | (plain[j + 1] & 0xff));
+            }
+            return chunk;
+        }
+        byte[] chunk = new byte[compressed.length];
+        compression.decompress(compressed.data, chunk, chunk.length);
+        return chunk;
+    }
+
+    private byte[] plainScratch(int length) {
+        if (plainScratch == null || plainScratch.length < length) {
+            plainScratch = new byte[length];
+        }
+        return plainScratch;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T set(int index, T element) {
+        lock.lock();
+        try {
+            T previous = get(index);
+            forget(entries.set(index, element));
+            clearCache();
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(int index, T element) {
+        lock.lock();
+        try {
+            entries.add(index, element);
+            clearCache();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T remove(int index) {
+        lock.lock();
+        try {
+            T previous = get(index);
+            forget(entries.remove(index));
+            clearCache();
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            savedBytes = 0;
+            clearCache();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forget(Object entry) {
+        if (entry instanceof Compressed) {
+            Compressed compressed = (Compressed) entry;
+            savedBytes -= compressed.plainBytes(chars) - compressed.data.length;
+        }
+    }
+
+    private void clearCache() {
+        for (int i = 0; i < cachedIdx.length; i++) {
+            cachedIdx[i] = -1;
+            cachedChunks[i] = null;
+        }
+    }
+
+    private static final class Compressed {
+        private final byte[] data;
+        private final int length;
+
+        private Compressed(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        private long plainBytes(boolean chars) {
+            return chars ? length * 2L : length;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.apache.jasper.runtime;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * A checksum or message digest maintained by a {@link ChunkedByteArray} or {@link ChunkedBuffer} while it is being
+ * appended to, see {@code trackDigest}. A {@link ChunkedBuffer} digests the UTF-8 encoding of its chars, with
+ * unpaired surrogates encoded as {@code '?'} like {@code String.getBytes("UTF-8")} does.
+ * <p>
+ * A digest tracks a single buffer at a time.
+ */
+public abstract class ContentDigest {
+    private static final int ENCODE_BUFFER_SIZE = 512;
+
+    private byte[] encodeBuffer;
+    private char pendingHighSurrogate;
+
+    public static ContentDigest crc32() {
+        return of(new CRC32());
+    }
+
+    public static ContentDigest sha256() {
+        try {
+            return of(MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param checksum a 32-bit checksum such as {@link CRC32} or {@link java.util.zip.Adler32}
+     */
+    public static ContentDigest of(Checksum checksum) {
+        if (checksum == null) {
+            throw new IllegalArgumentException("checksum: may not be null.");
+        }
+        return new ChecksumDigest(checksum);
+    }
+
+    /**
+     * @param digest a message digest that supports {@link MessageDigest#clone()}, as the ones of the JDK providers do
+     */
+    public static ContentDigest of(MessageDigest digest) {
+        if (digest == null) {
+            throw new IllegalArgumentException("digest: may not be null.");
+        }
+        try {
+            digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalArgumentException("digest must be cloneable", e);
+        }
+        return new MessageDigestDigest(digest);
+    }
+
+    abstract void update(byte[] b, int off, int len);
+
+    abstract void update(byte b);
+
+    void reset() {
+        pendingHighSurrogate = 0;
+    }
+
+    /**
+     * @return the digest of everything fed so far, leaving the state untouched so more content can follow
+     */
+    abstract byte[] value();
+
+    /**
+     * Feeds the UTF-8 encoding of the given chars. A high surrogate at the end is held back until the next call, as
+     * its low surrogate may follow.
+     */
+    void updateUtf8(char[] chars, int off, int len) {
+        if (encodeBuffer == null) {
+            encodeBuffer = new byte[ENCODE_BUFFER_SIZE];
+        }
+        byte[] buf = encodeBuffer;
+        int n = 0;
+        for (int end = off + len; off < end; off++) {
+            if (n > buf.length - 4) {
+                update(buf, 0, n);
+                n = 0;
+            }
+            char c = chars[off];
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    buf[n++] = (byte) (0xf0 | (cp >> 18));
+                    buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[n++] = (byte) (0x80 | (cp & 0x3f));
+                    continue;
+                }
+                buf[n++] = '?';
+            }
+            if (c < 0x80) {
+                buf[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xc0 | (c >> 6));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buf[n++] = '?';
+            } else {
+                buf[n++] = (byte) (0xe0 | (c >> 12));
+                buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        update(buf, 0, n);
+    }
+
+    boolean hasPendingHighSurrogate() {
+        return pendingHighSurrogate != 0;
+    }
+
+    /**
+     * Encodes a held back high surrogate as {@code '?'}. This can't be taken back, the digest has to be reset and fed
+     * again if a low surrogate follows.
+     */
+    void finishPendingHighSurrogate() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            update((byte) '?');
+        }
+    }
+
+    private static class ChecksumDigest extends ContentDigest {
+        private final Checksum checksum;
+
+        private ChecksumDigest(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        void update(byte[] b, int off, int len) {
+            checksum.update(b, off, len);
+        }
+
+        @Override
+        void update(byte b) {
+            checksum.update(b);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            checksum.reset();
+        }
+
+        @Override
+        byte[] value() {
+            long value = checksum.getValue();
+            return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+        }
+    }
+
+    private static class MessageDigestDigest extends ContentDigest {
+        private final MessageDigest digest;
+
+        private MessageDigestDigest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        void update(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+
+        @Override
+        void update(byte b) {
+            digest.update(b);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            digest.reset();
+        }
+
+        @Override
+        byte[] value() {
+            try {
+                return ((MessageDigest) digest.clone()).digest();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
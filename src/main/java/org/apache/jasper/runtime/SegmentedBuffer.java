@@ -0,0 +1,229 @@
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ordered output of parallel rendering tasks. The coordinating thread hands out a {@link Segment} per task, in
+ * output order, and each task fills its own segment without any contention and closes it when done. The segments
+ * are then stitched together in order, either by splicing their chunks into a single {@link ChunkedBuffer} or by
+ * writing each one out as soon as it and all the segments before it are complete.
+ * <p>
+ * Segments are created, merged and written out by the coordinating thread only; the tasks just write to and close
+ * their segment.
+ */
+public class SegmentedBuffer {
+    private final int initialCapacity;
+    private final int maxChunkSize;
+    private final double growthFactor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition segmentCompleted = lock.newCondition();
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int nextSegmentIdx;
+
+    public SegmentedBuffer() {
+        this(ChunkedBuffer.DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public SegmentedBuffer(int initialCapacity) {
+        this(initialCapacity, ChunkedBuffer.DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    public SegmentedBuffer(int initialCapacity, int maxChunkSize) {
+        this(initialCapacity, maxChunkSize, ChunkedBuffer.DEFAULT_GROWTH_FACTOR);
+    }
+
+    public SegmentedBuffer(int initialCapacity, int maxChunkSize, double growthFactor) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("initialCapacity must be positive");
+        }
+        if (growthFactor < 1) {
+            throw new IllegalArgumentException("growthFactor must be at least 1");
+        }
+        if (maxChunkSize < initialCapacity) {
+            throw new IllegalArgumentException("maxChunkSize must be at least as large as initialCapacity");
+        }
+        this.initialCapacity = initialCapacity;
+        this.maxChunkSize = maxChunkSize;
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * @return a new segment, ordered after all the segments created before it
+     */
+    public Segment newSegment() {
+        Segment segment = new Segment(this, initialCapacity, maxChunkSize, growthFactor);
+        lock.lock();
+        try {
+            segments.add(segment);
+        } finally {
+            lock.unlock();
+        }
+        return segment;
+    }
+
+    /**
+     * @return the number of segments created so far
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completed() {
+        lock.lock();
+        try {
+            segmentCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next segment in order if it has been completed, or null
+     */
+    private Segment pollCompleted() {
+        lock.lock();
+        try {
+            return nextCompleted();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next segment in order, waiting for it to be completed, or null when all segments are consumed
+     */
+    private Segment awaitCompleted() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (nextSegmentIdx < segments.size()) {
+                Segment segment = nextCompleted();
+                if (segment != null) {
+                    return segment;
+                }
+                segmentCompleted.await();
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a segment");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Segment nextCompleted() {
+        if (nextSegmentIdx >= segments.size()) {
+            return null;
+        }
+        Segment segment = segments.get(nextSegmentIdx);
+        if (!segment.completed) {
+            return null;
+        }
+        // the segment is consumed by the caller, don't hold on to its chunks
+        segments.set(nextSegmentIdx++, null);
+        return segment;
+    }
+
+    /**
+     * Splices the segments completed so far, in order and up to the first one still in progress, into
+     * {@code target}.
+     *
+     * @return the number of segments spliced
+     */
+    public int spliceCompleted(ChunkedBuffer target) {
+        int spliced = 0;
+        Segment segment;
+        while ((segment = pollCompleted()) != null) {
+            target.splice(segment);
+            spliced++;
+        }
+        return spliced;
+    }
+
+    /**
+     * Waits for all remaining segments to be completed and splices them, in order, into {@code target}.
+     */
+    public void spliceTo(ChunkedBuffer target) throws InterruptedIOException {
+        Segment segment;
+        while ((segment = awaitCompleted()) != null) {
+            target.splice(segment);
+        }
+    }
+
+    /**
+     * Writes the segments completed so far, in order and up to the first one still in progress, to {@code writer}.
+     *
+     * @return the number of segments written
+     */
+    public int writeCompleted(Writer writer) throws IOException {
+        int written = 0;
+        Segment segment;
+        while ((segment = pollCompleted()) != null) {
+            segment.writeOut(writer);
+            segment.clear();
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Writes all remaining segments to {@code writer} in order, each one as soon as it has been completed.
+     */
+    public void writeOut(Writer writer) throws IOException {
+        Segment segment;
+        while ((segment = awaitCompleted()) != null) {
+            segment.writeOut(writer);
+            segment.clear();
+        }
+    }
+
+    /**
+     * The part of the output produced by a single task. Closing the segment marks it as complete.
+     */
+    public static final class Segment extends ChunkedBuffer {
+        private static final long serialVersionUID = 1L;
+
+        private final SegmentedBuffer owner;
+        private volatile boolean completed;
+
+        private Segment(SegmentedBuffer owner, int initialCapacity, int maxChunkSize, double growthFactor) {
+            super(initialCapacity, maxChunkSize, growthFactor);
+            this.owner = owner;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        @Override
+        public void close() {
+            if (!completed) {
+                completed = true;
+                owner.completed();
+            }
+        }
+
+        /**
+         * A segment can't be read back without its {@link SegmentedBuffer}, so it is serialized as a plain
+         * {@link ChunkedBuffer} with the same content.
+         */
+        private Object writeReplace() throws IOException {
+            ChunkedBuffer copy = new ChunkedBuffer(getInitialCapacity(), getMaxChunkSize(), getGrowthFactor());
+            writeOut(copy);
+            return copy;
+        }
+    }
+}
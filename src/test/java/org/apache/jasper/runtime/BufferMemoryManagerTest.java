@@ -0,0 +1,217 @@
+package org.apache.jasper.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BufferMemoryManagerTest {
+
+    @After
+    public void uninstall() {
+        BufferMemoryManager.setGlobal(null);
+    }
+
+    @Test
+    public void testFailFast() {
+        BufferMemoryManager manager = new BufferMemoryManager(10000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedBuffer chars = new ChunkedBuffer(100, 1000);
+        ChunkedByteArray bytes = new ChunkedByteArray(100, 1000);
+        assertEquals(300, manager.getReservedBytes());
+        assertEquals(2, manager.getBufferCount());
+        try {
+            for (int i = 0; i < 10000; i++) {
+                chars.append('x');
+            }
+            fail();
+        } catch (BufferBudgetExceededException expected) {
+            assertTrue(manager.getReservedBytes() <= 10000);
+            assertEquals(chars.capacity() * 2 + bytes.capacity(), manager.getReservedBytes());
+        }
+        chars.clear();
+        assertEquals(100, manager.getReservedBytes());
+        bytes.setLength(5000);
+        bytes.setLength(0);
+        bytes.trimToSize();
+        assertEquals(100, manager.getReservedBytes());
+    }
+
+    @Test
+    public void testSplice() {
+        BufferMemoryManager manager = new BufferMemoryManager(100000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedBuffer target = new ChunkedBuffer(16, 64);
+        ChunkedBuffer source = new ChunkedBuffer(16, 64);
+        target.append("abc");
+        for (int i = 0; i < 500; i++) {
+            source.append('s');
+        }
+        target.splice(source);
+        assertEquals(target.capacity() * 2L, manager.getReservedBytes());
+    }
+
+    @Test
+    public void testPressureHandler() {
+        BufferMemoryManager manager = new BufferMemoryManager(4000);
+        BufferMemoryManager.setGlobal(manager);
+        final ChunkedByteArray cached = new ChunkedByteArray(2000, 2000);
+        manager.setPressureHandler(new BufferMemoryManager.PressureHandler() {
+            public void onPressure(BufferMemoryManager manager, long bytesNeeded) {
+                cached.clear();
+            }
+        });
+        ChunkedByteArray array = new ChunkedByteArray(1000, 3000);
+        array.setLength(3000);
+        assertEquals(0, cached.capacity());
+        assertEquals(3000, manager.getReservedBytes());
+    }
+
+    @Test
+    public void testBlockUntilReleased() throws Exception {
+        BufferMemoryManager manager = new BufferMemoryManager(4000, BufferMemoryManager.Policy.BLOCK, 10,
+                TimeUnit.SECONDS);
+        BufferMemoryManager.setGlobal(manager);
+        final ChunkedByteArray first = new ChunkedByteArray(3000, 3000);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    waiting.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                first.clear();
+            }
+        };
+        releaser.start();
+        waiting.countDown();
+        ChunkedByteArray second = new ChunkedByteArray(3000, 3000);
+        assertEquals(0, first.capacity());
+        assertEquals(3000, second.capacity());
+        releaser.join();
+
+        manager = new BufferMemoryManager(1000, BufferMemoryManager.Policy.BLOCK, 50, TimeUnit.MILLISECONDS);
+        BufferMemoryManager.setGlobal(manager);
+        new ChunkedByteArray(800, 800);
+        try {
+            new ChunkedByteArray(800, 800);
+            fail();
+        } catch (BufferBudgetExceededException expected) {
+            assertEquals(800, expected.getRequestedBytes());
+        }
+    }
+    @Test
+    public void testWritingOnAfterFailure() {
+        BufferMemoryManager manager = new BufferMemoryManager(1000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedBuffer chars = new ChunkedBuffer(16, 16);
+        ChunkedIntArray ints = new ChunkedIntArray(16, 16);
+        chars.append("0123456789abcdef");
+        for (int i = 0; i < 16; i++) {
+            ints.append(i);
+        }
+        // takes up the rest of the budget
+        ChunkedByteArray other = new ChunkedByteArray((int) manager.getAvailableBytes(), 1000);
+        try {
+            chars.append("ghij");
+            fail();
+        } catch (BufferBudgetExceededException expected) {
+        }
+        try {
+            ints.append(16);
+            fail();
+        } catch (BufferBudgetExceededException expected) {
+        }
+        assertEquals(16, chars.length());
+        assertEquals(16, ints.length());
+        other.clear();
+        chars.append("XY");
+        ints.append(16);
+        assertEquals("0123456789abcdefXY", chars.toString());
+        assertEquals(17, ints.length());
+        for (int i = 0; i < 17; i++) {
+            assertEquals(i, ints.get(i));
+        }
+    }
+
+    @Test
+    public void testThawWithinBudget() {
+        BufferMemoryManager manager = new BufferMemoryManager(100000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedBuffer chars = new ChunkedBuffer(100, 100);
+        chars.setChunkCompression(new ChunkCompression());
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            String line = "<tr><td>" + i + "</td><td>row</td></tr>\n";
+            chars.append(line);
+            expected.append(line);
+        }
+        long saved = chars.compressSealedChunks();
+        assertTrue(saved > 0);
+        assertEquals(chars.capacity() * 2L - saved, manager.getReservedBytes());
+        // another buffer takes up what the compression gave back
+        ChunkedByteArray other = new ChunkedByteArray((int) manager.getAvailableBytes(), 100000);
+        try {
+            chars.setLength(10);
+            fail();
+        } catch (BufferBudgetExceededException expectedException) {
+        }
+        try {
+            chars.setChunkCompression(null);
+            fail();
+        } catch (BufferBudgetExceededException expectedException) {
+        }
+        assertTrue(manager.getReservedBytes() <= 100000);
+        assertEquals(expected.toString(), chars.toString());
+
+        other.clear();
+        chars.setLength(10);
+        chars.append("end");
+        assertEquals(expected.substring(0, 10) + "end", chars.toString());
+        chars.setChunkCompression(null);
+        assertEquals(chars.capacity() * 2L, manager.getReservedBytes());
+    }
+
+    @Test
+    public void testPipe() throws IOException {
+        BufferMemoryManager manager = new BufferMemoryManager(1000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedPipe pipe = new ChunkedPipe(100, 100);
+        assertEquals(200, manager.getReservedBytes());
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'p');
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipe.write(chars);
+                assertEquals(pipe.size() * 2L, manager.getReservedBytes());
+            }
+            fail();
+        } catch (BufferBudgetExceededException expected) {
+        }
+        assertTrue(manager.getReservedBytes() <= 1000);
+        pipe.flush();
+        StringWriter out = new StringWriter();
+        long drained = pipe.drainTo(out);
+        // chunks of 100, 50, 75, 100 and 100 chars fit in the budget
+        assertEquals(425, drained);
+        // the tail chunk, and a full one kept for reuse
+        assertEquals(400, manager.getReservedBytes());
+
+        pipe.write(chars);
+        pipe.write(chars);
+        pipe.write(chars);
+        pipe.close();
+        assertEquals(drained + 300, drained + pipe.drainTo(out));
+        assertEquals(drained + 300, out.toString().length());
+        pipe.getReader().close();
+        assertEquals(0, manager.getReservedBytes());
+    }
+}
@@ -0,0 +1,136 @@
+package org.apache.jasper.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ChunkCompressionTest {
+
+    @After
+    public void uninstall() {
+        BufferMemoryManager.setGlobal(null);
+    }
+
+    private static String text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("<tr><td>row ").append(i).append("</td></tr>\n");
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    @Test
+    public void testCompressSealedChunks() throws IOException {
+        String expected = text(10000);
+        ChunkedBuffer buf = new ChunkedBuffer(256, 1024);
+        for (int i = 0; i < expected.length(); i += 100) {
+            buf.append(expected, i, 100);
+        }
+        buf.setChunkCompression(new ChunkCompression());
+        assertTrue(buf.compressSealedChunks() > 0);
+        assertEquals(0, buf.compressSealedChunks());
+
+        assertEquals(expected, buf.toString());
+        char[] dst = new char[3000];
+        buf.getChars(4000, 7000, dst, 0);
+        assertEquals(expected.substring(4000, 7000), new String(dst));
+        StringWriter out = new StringWriter();
+        buf.writeOut(out);
+        assertEquals(expected, out.toString());
+        Reader reader = buf.getReader();
+        StringBuilder read = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            read.append((char) c);
+        }
+        assertEquals(expected, read.toString());
+        assertEquals(expected.hashCode(), buf.contentHashCode());
+        assertEquals(expected.split("\n", -1).length, buf.lineCount());
+
+        // keep writing after the end and in the middle
+        buf.append("tail");
+        assertEquals(expected + "tail", buf.toString());
+        buf.setLength(3000);
+        buf.append("cut");
+        assertEquals(expected.substring(0, 3000) + "cut", buf.toString());
+        buf.compressSealedChunks();
+        buf.setChunkCompression(null);
+        assertNull(buf.getChunkCompression());
+        assertEquals(expected.substring(0, 3000) + "cut", buf.toString());
+    }
+
+    @Test
+    public void testThreshold() {
+        String expected = text(20000);
+        ChunkedBuffer buf = new ChunkedBuffer(256, 1024);
+        buf.setChunkCompression(new ChunkCompression(1, 2, 8000));
+        BufferMemoryManager manager = new BufferMemoryManager(1000000);
+        BufferMemoryManager.setGlobal(manager);
+        ChunkedByteArray bytes = new ChunkedByteArray(256, 1024);
+        bytes.setChunkCompression(new ChunkCompression(1, 2, 8000));
+        byte[] expectedBytes = expected.getBytes();
+        for (int i = 0; i < expected.length(); i += 100) {
+            bytes.append(expectedBytes, i, 100);
+            buf.append(expected, i, 100);
+        }
+        assertEquals(expected, buf.toString());
+        // the chunks sealed beyond the threshold are compressed already
+        assertTrue(manager.getReservedBytes() < bytes.capacity() * 3 / 4);
+        assertEquals(expected, new String(bytes.toArray()));
+
+        bytes.clear();
+        assertEquals(bytes.capacity(), manager.getReservedBytes());
+    }
+
+    @Test
+    public void testByteArray() throws IOException {
+        BufferMemoryManager manager = new BufferMemoryManager(1000000);
+        BufferMemoryManager.setGlobal(manager);
+        byte[] expected = text(10000).getBytes();
+        ChunkedByteArray bytes = new ChunkedByteArray(256, 1024);
+        for (int i = 0; i < expected.length; i += 100) {
+            bytes.append(expected, i, 100);
+        }
+        bytes.setChunkCompression(new ChunkCompression());
+        long saved = bytes.compressSealedChunks();
+        assertTrue(saved > 0);
+        assertEquals(bytes.capacity() - saved, manager.getReservedBytes());
+
+        assertArrayEquals(expected, bytes.toArray());
+        InputStream in = bytes.getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            read.write(b);
+        }
+        assertArrayEquals(expected, read.toByteArray());
+
+        bytes.setChunkCompression(null);
+        assertEquals(bytes.capacity(), manager.getReservedBytes());
+        assertArrayEquals(expected, bytes.toArray());
+    }
+
+    @Test
+    public void testIncompressible() {
+        byte[] random = new byte[4096];
+        new java.util.Random(1).nextBytes(random);
+        ChunkedByteArray bytes = new ChunkedByteArray(256, 1024);
+        bytes.append(random, 0, random.length);
+        bytes.append(random, 0, 1);
+        bytes.setChunkCompression(new ChunkCompression());
+        assertEquals(0, bytes.compressSealedChunks());
+        try {
+            new ChunkedBuffer().compressSealedChunks();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import javax.servlet.jsp.JspWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ChunkedBodyContentTest {
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ChunkedBodyContent content = new ChunkedBodyContent(null, new ChunkedBuffer(4, 16));
+        content.print("a");
+        content.print(1);
+        content.print(true);
+        content.print((String) null);
+        content.write("xyz", 1, 2);
+        content.print('c');
+        assertEquals("a1truenullyzc", content.getString());
+
+        StringWriter out = new StringWriter();
+        content.writeOut(out);
+        assertEquals("a1truenullyzc", out.toString());
+        Reader reader = content.getReader();
+        char[] buf = new char[20];
+        assertEquals(13, reader.read(buf));
+        assertEquals(0, content.getRemaining());
+        assertEquals(JspWriter.UNBOUNDED_BUFFER, content.getBufferSize());
+
+        content.clearBody();
+        assertEquals("", content.getString());
+        content.print(-42);
+        content.print(Long.MIN_VALUE);
+        content.println(7L);
+        assertEquals("-42" + Long.MIN_VALUE + "7" + System.getProperty("line.separator"), content.getString());
+        content.clearBody();
+        try {
+            content.flush();
+            fail();
+        } catch (IOException expected) {
+            // body content may not be flushed
+        }
+        content.close();
+        try {
+            content.print("closed");
+            fail();
+        } catch (IOException expected) {
+            // closed
+        }
+    }
+
+    @Test
+    public void testStackRecyclesPerDepth() throws IOException {
+        ChunkedBodyContent page = new ChunkedBodyContent(null);
+        ChunkedBodyContentStack stack = new ChunkedBodyContentStack(page);
+        ChunkedBodyContent outer = stack.push();
+        outer.print("outer");
+        ChunkedBodyContent inner = stack.push();
+        assertSame(outer, inner.getEnclosingWriter());
+        inner.print("inner");
+        assertSame(inner, stack.getWriter());
+        assertSame(outer, stack.pop());
+        inner.writeOut(stack.getWriter());
+        assertEquals("outerinner", outer.getString());
+        assertSame(page, stack.pop());
+        assertEquals(0, stack.getDepth());
+
+        assertSame(outer, stack.push());
+        assertEquals("", outer.getString());
+        assertSame(inner, stack.push());
+        assertEquals("", inner.getString());
+        inner.print("again");
+        assertEquals("again", inner.getString());
+        stack.release();
+        assertSame(page, stack.getWriter());
+    }
+}
@@ -6,7 +6,11 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.nio.CharBuffer;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -258,5 +262,485 @@ public class ChunkedBufferTest {
         Assert.assertEquals(txt, sb.toString());
     }
 
+    @Test
+    public void testUnsynchronizedReader() throws IOException {
+        ChunkedBuffer cb = new ChunkedBuffer(2, 4);
+        String txt = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        cb.append(txt);
+        Reader reader = cb.getUnsynchronizedReader();
+        assertEquals('A', reader.read());
+        reader.mark(0);
+        char[] buf = new char[5];
+        StringBuilder sb = new StringBuilder();
+        int len;
+        while ((len = reader.read(buf, 0, 5)) != -1) {
+            sb.append(buf, 0, len);
+        }
+        assertEquals(txt.substring(1), sb.toString());
+        reader.reset();
+        assertEquals(5, reader.skip(5));
+        assertEquals('G', reader.read());
+    }
+
+    @Test
+    public void testReaderSkipAndCharBuffer() throws IOException {
+        ChunkedBuffer cb = new ChunkedBuffer(2, 4);
+        String txt = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        cb.append(txt);
+        Reader reader = cb.getReader();
+        assertEquals(7, reader.skip(7));
+        assertEquals('H', reader.read());
+        CharBuffer target = CharBuffer.allocate(10);
+        assertEquals(10, reader.read(target));
+        target.flip();
+        assertEquals("IJKLMNOPQR", target.toString());
+        target.clear();
+        assertEquals(8, reader.read(target));
+        assertEquals(-1, reader.read(target));
+        reader = cb.getReader();
+        assertEquals(26, reader.skip(100));
+        assertEquals(-1, reader.read());
+    }
+
+    @Test
+    public void testLazyAllocation() {
+        ChunkedBuffer buf = new ChunkedBuffer(128);
+        buf.setLength(10000);
+        assertEquals(10000, buf.length());
+        assertEquals(10000, buf.capacity());
+        assertEquals(0, buf.getUnused());
+
+        char[] array = new char[10000];
+        Arrays.fill(array, 'A');
+        buf = new ChunkedBuffer(128);
+        buf.append("ab");
+        buf.append(array, 0, array.length);
+        assertEquals(10002, buf.length());
+        assertEquals(10002, buf.capacity()); // one right-sized chunk after the initial one
+        buf.append('c');
+        assertEquals(10003, buf.length());
+        assertEquals("ab" + new String(array) + "c", buf.toString());
+    }
+
+    @Test
+    public void testSetLengthReusesChunks() {
+        ChunkedBuffer buf = new ChunkedBuffer(16, 16);
+        buf.append("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+        int capacity = buf.capacity();
+        buf.setLength(5);
+        buf.append("fghijklmnopqrstuvwxyz");
+        assertEquals("ABCDEfghijklmnopqrstuvwxyz", buf.toString());
+        assertEquals(capacity, buf.capacity());
+        buf.setLength(5);
+        buf.trimToSize();
+        assertEquals(16, buf.capacity());
+    }
+
+    @Test
+    public void testAppendAfterClear() {
+        ChunkedBuffer buf = new ChunkedBuffer(16);
+        buf.append("abc");
+        buf.clear();
+        assertEquals(0, buf.getUnused());
+        buf.append('x');
+        buf.append("yz");
+        assertEquals("xyz", buf.toString());
+        assertEquals(16, buf.capacity());
+    }
+
+    @Test
+    public void testConcurrentReaderPolls() throws IOException {
+        ChunkedBuffer cb = new ChunkedBuffer(2, 4);
+        cb.append("ABC");
+        Reader reader = cb.getConcurrentReader();
+        char[] buf = new char[10];
+        assertEquals(3, reader.read(buf, 0, 10));
+        assertEquals(-1, reader.read());
+        assertFalse(reader.ready());
+        cb.append("DEFGHIJ");
+        assertTrue(reader.ready());
+        assertEquals(7, reader.read(buf, 0, 10));
+        assertEquals("DEFGHIJ", new String(buf, 0, 7));
+
+        cb.setLength(2);
+        try {
+            reader.read();
+            fail("a truncated buffer must invalidate its concurrent readers");
+        } catch (IOException e) {
+            // expected
+        }
+        cb.append("xyz");
+        assertEquals("ABxyz", cb.toString());
+        Reader reader2 = cb.getConcurrentReader();
+        assertEquals(5, reader2.read(buf, 0, 10));
+        assertEquals("ABxyz", new String(buf, 0, 5));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final ChunkedBuffer cb = new ChunkedBuffer(16, 256);
+        final int total = 200000;
+        final Reader[] readers = new Reader[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = cb.getConcurrentReader();
+        }
+        final String[] errors = new String[readers.length];
+        Thread[] threads = new Thread[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            final int readerIdx = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        char[] buf = new char[100];
+                        int read = 0;
+                        while (read < total) {
+                            int len = readers[readerIdx].read(buf, 0, buf.length);
+                            for (int j = 0; j < len; j++, read++) {
+                                if (buf[j] != (char) ('a' + read % 26)) {
+                                    errors[readerIdx] = "unexpected char at " + read;
+                                    return;
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        errors[readerIdx] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < total; i++) {
+            cb.append((char) ('a' + i % 26));
+        }
+        for (int i = 0; i < readers.length; i++) {
+            threads[i].join();
+            assertNull(errors[i], errors[i]);
+        }
+    }
+
+    @Test
+    public void testSplice() {
+        ChunkedBuffer target = new ChunkedBuffer(4, 8);
+        target.append("ABCDEF");
+        ChunkedBuffer source = new ChunkedBuffer(4, 8);
+        source.append("GHIJKLMNOPQRSTU");
+        target.splice(source);
+        assertEquals(0, source.length());
+        assertEquals(21, target.length());
+        assertEquals("ABCDEFGHIJKLMNOPQRSTU", target.toString());
+        target.append("VWXYZ");
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", target.toString());
+        assertEquals(target.length() + target.getUnused(), target.capacity());
+
+        source.append("0123");
+        target.splice(source);
+        target.splice(new ChunkedBuffer());
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ0123", target.toString());
+        char[] dst = new char[4];
+        target.getChars(25, 29, dst, 0);
+        assertEquals("Z012", new String(dst));
+    }
+
+    @Test
+    public void testContentEquals() {
+        String txt = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        ChunkedBuffer a = new ChunkedBuffer(2, 4);
+        a.append(txt);
+        ChunkedBuffer b = new ChunkedBuffer(3, 7);
+        b.append(txt);
+        assertTrue(a.contentEquals(txt));
+        assertTrue(a.contentEquals(new StringBuilder(txt)));
+        assertTrue(a.contentEquals(b));
+        assertTrue(b.contentEquals(a));
+        assertFalse(a.contentEquals(txt.substring(1)));
+        assertFalse(a.contentEquals(txt.replace('Q', 'q')));
+        b.setLength(25);
+        assertFalse(a.contentEquals(b));
+        b.append('z');
+        assertFalse(a.contentEquals(b));
+        assertTrue(new ChunkedBuffer().contentEquals(""));
+        assertTrue(new ChunkedBuffer().contentEquals(new ChunkedBuffer(16)));
+    }
+
+    @Test
+    public void testCompareTo() {
+        String[] texts = {"", "A", "ABC", "ABCDEFGHIJKLMNOPQRSTUVWXYZ", "ABCDEFGHIJKLMNOPQRSTUVWXYz", "abc", "ABD"};
+        for (String x : texts) {
+            for (String y : texts) {
+                ChunkedBuffer a = new ChunkedBuffer(2, 4);
+                a.append(x);
+                ChunkedBuffer b = new ChunkedBuffer(5, 5);
+                b.append(y);
+                assertEquals(x + " vs " + y, Integer.signum(x.compareTo(y)), Integer.signum(a.compareTo(b)));
+            }
+        }
+    }
+
+    @Test
+    public void testContentHashCode() {
+        ChunkedBuffer buf = new ChunkedBuffer(2, 8);
+        StringBuilder sb = new StringBuilder();
+        assertEquals("".hashCode(), buf.contentHashCode());
+        for (int i = 0; i < 100; i++) {
+            buf.append("x" + i);
+            sb.append("x").append(i);
+            if (i % 7 == 0) {
+                assertEquals(sb.toString().hashCode(), buf.contentHashCode());
+            }
+        }
+        assertEquals(sb.toString().hashCode(), buf.contentHashCode());
+        buf.setLength(50);
+        sb.setLength(50);
+        assertEquals(sb.toString().hashCode(), buf.contentHashCode());
+        buf.clear();
+        assertEquals(0, buf.contentHashCode());
+    }
 
+    @Test
+    public void testSpliterator() {
+        ChunkedBuffer buf = new ChunkedBuffer(16, 64);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            char c = (char) ('a' + i % 26);
+            buf.append(c);
+            sb.append(c);
+        }
+        Spliterator.OfInt spliterator = buf.spliterator();
+        assertEquals(5000, spliterator.getExactSizeIfKnown());
+        Spliterator.OfInt head = spliterator.trySplit();
+        assertNotNull(head);
+        assertEquals(5000, head.estimateSize() + spliterator.estimateSize());
+        assertTrue(Math.abs(head.estimateSize() - spliterator.estimateSize()) <= 64);
+        StringBuilder joined = new StringBuilder();
+        head.forEachRemaining((int c) -> joined.append((char) c));
+        spliterator.forEachRemaining((int c) -> joined.append((char) c));
+        assertEquals(sb.toString(), joined.toString());
+
+        assertEquals(sb.chars().filter(c -> c == 'q').count(), buf.chars().parallel().filter(c -> c == 'q').count());
+        assertEquals(sb.toString(), buf.chars().parallel()
+                .collect(StringBuilder::new, (b, c) -> b.append((char) c), StringBuilder::append).toString());
+        assertEquals(0, new ChunkedBuffer().chars().count());
+    }
+
+    @Test
+    public void testParallelToArray() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ChunkedBuffer buf = new ChunkedBuffer(128, 4096);
+            assertEquals("", buf.toString(pool));
+            buf.append("small");
+            assertEquals("small", buf.toString(pool));
+            char[] block = new char[1000];
+            for (int i = 0; buf.length() < 3 * ChunkedBuffer.PARALLEL_COPY_THRESHOLD; i++) {
+                Arrays.fill(block, (char) ('a' + i % 26));
+                buf.append(block, 0, 1 + i % block.length);
+            }
+            char[] expected = buf.toArray();
+            assertTrue(Arrays.equals(expected, buf.toArray(pool)));
+            assertEquals(new String(expected), buf.toString(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBase64AndHex() {
+        for (int size : new int[]{0, 1, 2, 3, 100, 1001, 5000}) {
+            byte[] bytes = new byte[size];
+            for (int i = 0; i < size; i++) {
+                bytes[i] = (byte) (i * 31 + 7);
+            }
+            ChunkedByteArray src = new ChunkedByteArray(16, 50);
+            src.append(bytes, 0, bytes.length);
+
+            ChunkedBuffer buf = new ChunkedBuffer(16, 64);
+            buf.append("data:");
+            buf.appendBase64(src);
+            assertEquals("data:" + Base64.getEncoder().encodeToString(bytes), buf.toString());
+            buf = new ChunkedBuffer(16, 64);
+            buf.appendBase64(src, true);
+            assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), buf.toString());
+            ChunkedByteArray decoded = new ChunkedByteArray(16, 64);
+            decoded.appendBase64Decoded(buf);
+            assertTrue(decoded.contentEquals(bytes));
+
+            buf = new ChunkedBuffer(16, 64);
+            buf.appendHex(src, true);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : bytes) {
+                hex.append(String.format("%02X", b));
+            }
+            assertEquals(hex.toString(), buf.toString());
+            decoded = new ChunkedByteArray(16, 64);
+            decoded.appendHexDecoded(buf);
+            assertTrue(decoded.contentEquals(bytes));
+        }
+    }
+
+    @Test
+    public void testMalformedBase64AndHex() {
+        ChunkedByteArray decoded = new ChunkedByteArray();
+        decoded.append((byte) 1);
+        decoded.appendBase64Decoded(new ChunkedBuffer("QUJD"));
+        assertTrue(decoded.contentEquals(new byte[]{1, 'A', 'B', 'C'}));
+        for (String bad : new String[]{"QUJDR", "QUJD=", "QU=J", "QU*D", "QUJ=="}) {
+            try {
+                decoded.appendBase64Decoded(new ChunkedBuffer(bad));
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+                assertEquals(4, decoded.length());
+            }
+        }
+        for (String bad : new String[]{"abc", "0g"}) {
+            try {
+                decoded.appendHexDecoded(new ChunkedBuffer(bad));
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+                assertEquals(4, decoded.length());
+            }
+        }
+    }
+
+    @Test
+    public void testLineIndex() throws IOException {
+        ChunkedBuffer buf = new ChunkedBuffer(4, 8);
+        assertEquals(1, buf.lineCount());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String line = "line " + i + (i % 3 == 0 ? "\r\n" : "\n");
+            buf.append(line);
+            text.append(line);
+            assertEquals(i + 2, buf.lineCount());
+        }
+        buf.append("last");
+        text.append("last");
+        String[] lines = text.toString().split("\r?\n", -1);
+        assertEquals(lines.length, buf.lineCount());
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            buf.getLine(i, sb);
+            assertEquals(lines[i], sb.toString());
+            StringWriter w = new StringWriter();
+            buf.getLine(i, w);
+            assertEquals(lines[i], w.toString());
+        }
+        for (int offset = 0; offset <= text.length(); offset++) {
+            int line = buf.lineOf(offset);
+            int expected = 0;
+            for (int j = 0; j < offset; j++) {
+                if (text.charAt(j) == '\n') {
+                    expected++;
+                }
+            }
+            assertEquals(expected, line);
+            assertTrue(buf.lineStart(line) <= offset);
+        }
+
+        int cut = text.indexOf("line 20");
+        buf.setLength(cut);
+        assertEquals(21, buf.lineCount());
+        assertEquals(20, buf.lineOf(cut));
+        buf.setLength(cut - 1);
+        assertEquals(20, buf.lineCount());
+        StringBuilder sb = new StringBuilder();
+        buf.getLine(19, sb);
+        assertEquals("line 19", sb.toString());
+        buf.append("\nmore\nlines");
+        assertEquals(22, buf.lineCount());
+        sb.setLength(0);
+        buf.getLine(21, sb);
+        assertEquals("lines", sb.toString());
+
+        buf.clear();
+        assertEquals(1, buf.lineCount());
+        sb.setLength(0);
+        buf.getLine(0, sb);
+        assertEquals("", sb.toString());
+        buf.append("a\nb");
+        assertEquals(2, buf.lineCount());
+    }
+
+    @Test
+    public void testAppendFormat() {
+        CompiledFormat format = CompiledFormat.compile("row {0} of {1}: '{'{2}'}' isn''t {3}");
+        assertEquals(4, format.getArgumentCount());
+        ChunkedBuffer buf = new ChunkedBuffer(16, 16);
+        buf.appendFormat(format, 7, "x", new StringBuilder("sb"), true);
+        assertEquals("row 7 of x: {sb} isn't true", buf.toString());
+
+        buf.clear();
+        buf.appendFormatLong(CompiledFormat.compile("{1}-{0}"), Long.MIN_VALUE, 0);
+        assertEquals("0-" + Long.MIN_VALUE, buf.toString());
+
+        long[] values = {0, 9, 10, -1, 99, 1000000007, Long.MAX_VALUE, -1234567890123L};
+        CompiledFormat single = CompiledFormat.compile("[{0}]");
+        for (long value : values) {
+            buf.clear();
+            buf.appendFormatLong(single, value);
+            assertEquals("[" + value + "]", buf.toString());
+        }
+
+        buf.clear();
+        buf.appendFormat(single, 'x');
+        assertEquals("[x]", buf.toString());
+        buf.clear();
+        buf.appendFormatLong(CompiledFormat.compile("{2}{1}{0}{2}"), 1, 2, 3);
+        assertEquals("3213", buf.toString());
+        buf.clear();
+        buf.appendFormat(CompiledFormat.compile("{0} {1} {2}"), 'c', null, 1.5);
+        assertEquals("c null 1.5", buf.toString());
+
+        try {
+            buf.appendFormatLong(CompiledFormat.compile("{0} {1}"), 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        for (String malformed : new String[]{"{", "{a}", "{}", "'open"}) {
+            try {
+                CompiledFormat.compile(malformed);
+                fail(malformed);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testAppendCharSequence() {
+        ChunkedBuffer buf = new ChunkedBuffer(16, 16);
+        StringBuilder expected = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append(i).append(',');
+        }
+        buf.append((CharSequence) "abc").append(sb).append(sb, 5, 40).append(new StringBuffer("buffer"));
+        expected.append("abc").append(sb).append(sb, 5, 40).append("buffer");
+
+        CharBuffer heap = CharBuffer.wrap(sb.toString().toCharArray(), 3, 50);
+        CharBuffer direct = java.nio.ByteBuffer.allocateDirect(200).asCharBuffer();
+        direct.put(sb.toString(), 0, 100).flip();
+        direct.position(10);
+        buf.append(heap, 2, 30).append(direct).append(direct, 1, 7).append((CharSequence) null);
+        expected.append(heap, 2, 30).append(direct).append(direct, 1, 7).append((CharSequence) null);
+        assertEquals(3, heap.position());
+        assertEquals(10, direct.position());
+        assertEquals(expected.toString(), buf.toString());
+
+        ChunkedBuffer other = new ChunkedBuffer(16, 16);
+        other.appendBuffer(buf).appendBuffer(buf, 17, 99).appendBuffer(other, 3, 40);
+        expected.append(expected, 17, 99);
+        expected.append(expected, 3, 40);
+        assertEquals(expected.toString(), other.toString());
+
+        try {
+            buf.append((CharSequence) "abc", 2, 1);
+            fail();
+        } catch (IndexOutOfBoundsException expectedException) {
+        }
+        try {
+            buf.appendBuffer(other, 0, other.length() + 1);
+            fail();
+        } catch (IndexOutOfBoundsException expectedException) {
+        }
+    }
 }
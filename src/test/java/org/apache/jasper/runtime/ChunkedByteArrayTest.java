@@ -0,0 +1,182 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ChunkedByteArrayTest {
+
+    @Test
+    public void testDataOutputMatchesDataOutputStream() throws IOException {
+        // small chunks, so that values straddle chunk boundaries
+        ChunkedByteArray array = new ChunkedByteArray(16, 16);
+        ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        DataOutputStream expected = new DataOutputStream(expectedBytes);
+        for (int i = 0; i < 100; i++) {
+            array.writeBoolean(i % 2 == 0);
+            expected.writeBoolean(i % 2 == 0);
+            array.writeShort(i * 1000);
+            expected.writeShort(i * 1000);
+            array.writeInt(i * 123456789);
+            expected.writeInt(i * 123456789);
+            array.writeLong(i * 1234567890123L);
+            expected.writeLong(i * 1234567890123L);
+            array.writeDouble(i / 3.0);
+            expected.writeDouble(i / 3.0);
+            array.writeUTF("café €\u0000" + i);
+            expected.writeUTF("café €\u0000" + i);
+            array.writeChars("ab");
+            expected.writeChars("ab");
+        }
+        assertTrue(Arrays.equals(expectedBytes.toByteArray(), array.toArray()));
+    }
+
+    @Test
+    public void testLittleEndian() throws IOException {
+        ChunkedByteArray array = new ChunkedByteArray(16, 16);
+        array.writeByte(0);
+        for (int i = 0; i < 20; i++) {
+            array.writeIntLE(0x01020304);
+            array.writeLongLE(-2L);
+            array.writeDoubleLE(1.5);
+        }
+        byte[] bytes = array.toArray();
+        assertEquals(4, bytes[1]);
+        assertEquals(1, bytes[4]);
+
+        ChunkedByteArray.ChunkedByteBufferInputStream in = array.getInputStream();
+        assertEquals(0, in.readByte());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0x01020304, in.readIntLE());
+            assertEquals(-2L, in.readLongLE());
+            assertEquals(1.5, in.readDoubleLE(), 0);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testDataInput() throws IOException {
+        ChunkedByteArray array = new ChunkedByteArray(16, 16);
+        for (int i = 0; i < 50; i++) {
+            array.writeInt(i);
+            array.writeLong(-i);
+            array.writeUTF("line " + i);
+        }
+        array.writeBytes("first\r\nsecond\rthird\n");
+        array.writeByte(0xff);
+
+        ChunkedByteArray.ChunkedByteBufferInputStream in = array.getInputStream();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, in.readInt());
+            assertEquals(-i, in.readLong());
+            assertEquals("line " + i, in.readUTF());
+        }
+        assertEquals("first", in.readLine());
+        assertEquals("second", in.readLine());
+        assertEquals("third", in.readLine());
+        assertEquals(0xff, in.readUnsignedByte());
+        assertNull(in.readLine());
+        try {
+            in.readInt();
+            fail();
+        } catch (EOFException expected) {
+            // at the end
+        }
+    }
+
+    @Test
+    public void testAbsoluteReads() throws IOException {
+        ChunkedByteArray array = new ChunkedByteArray(16, 16);
+        for (int i = 0; i < 100; i++) {
+            array.writeInt(i);
+        }
+        array.writeLong(Long.MIN_VALUE);
+        ChunkedByteArray.ChunkedByteBufferInputStream in = array.getInputStream();
+        assertEquals(152, in.skipBytes(152));
+        for (int i = 99; i >= 0; i--) {
+            assertEquals(i, in.getInt(i * 4));
+        }
+        assertEquals(Long.MIN_VALUE, in.getLong(400));
+        assertEquals(0x200, in.getInt(9));
+        assertEquals(0x30000, in.getInt(14));
+        assertEquals(38, in.readInt());
+        try {
+            in.getInt(405);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            // beyond the end
+        }
+    }
+
+    @Test
+    public void testSkipAndRead() throws IOException {
+        ChunkedByteArray array = new ChunkedByteArray(16, 16);
+        for (int i = 0; i < 100; i++) {
+            array.append((byte) (i + 100));
+        }
+        ChunkedByteArray.ChunkedByteBufferInputStream in = array.getInputStream();
+        assertEquals(40, in.skip(40));
+        assertEquals(140, in.read());
+        assertEquals(59, in.skip(1000));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testBulkTransfer() throws IOException {
+        ChunkedByteArray array = new ChunkedByteArray(16, 64);
+        for (int i = 0; i < 1000; i++) {
+            array.append((byte) i);
+        }
+        ChunkedByteArray.ChunkedByteBufferInputStream in = array.getInputStream();
+        assertEquals(1000, in.available());
+        assertEquals(100, in.skip(100));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(900, in.transferTo(out));
+        assertEquals(0, in.available());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(array.toArray(), 100, 1000), out.toByteArray()));
+
+        in = array.getInputStream();
+        in.skip(10);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(array.toArray(), 10, 1000), in.readAllBytes()));
+        assertEquals(0, in.readAllBytes().length);
+    }
+
+    @Test
+    public void testBytesStream() {
+        ChunkedByteArray array = new ChunkedByteArray(16, 64);
+        long sum = 0;
+        for (int i = 0; i < 10000; i++) {
+            array.append((byte) i);
+            sum += i & 0xff;
+        }
+        assertEquals(10000, array.bytes().parallel().count());
+        assertEquals(sum, array.bytes().parallel().asLongStream().sum());
+        assertEquals(255, array.bytes().max().getAsInt());
+        assertArrayEquals(array.toArray(), toBytes(array.bytes().parallel().toArray()));
+    }
+
+    @Test
+    public void testParallelToArray() {
+        ChunkedByteArray array = new ChunkedByteArray();
+        for (int i = 0; array.length() < 2 * ChunkedByteArray.PARALLEL_COPY_THRESHOLD + 7; i++) {
+            array.writeInt(i);
+        }
+        byte[] copy = array.toArray(ForkJoinPool.commonPool());
+        assertTrue(array.contentEquals(copy));
+    }
+
+    private static byte[] toBytes(int[] values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
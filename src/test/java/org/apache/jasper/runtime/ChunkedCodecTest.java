@@ -0,0 +1,203 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChunkedCodecTest {
+
+    private static ChunkedBuffer roundTrip(ChunkedBuffer src) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChunkedCodec.write(src, new DataOutputStream(bytes));
+        return ChunkedCodec.readBuffer(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testLatin1() throws IOException {
+        ChunkedBuffer src = new ChunkedBuffer(8, 32);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) (i % 256));
+        }
+        src.append(sb.toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChunkedCodec.write(src, new DataOutputStream(bytes));
+        assertTrue(bytes.size() < 1100);
+        assertEquals(sb.toString(), roundTrip(src).toString());
+    }
+
+    @Test
+    public void testUtf8AndUtf16() throws IOException {
+        String[] samples = {"résumé € 😀 \ud800", "日本語テキスト"};
+        for (String sample : samples) {
+            ChunkedBuffer src = new ChunkedBuffer(8, 32);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                src.append(sample);
+                sb.append(sample);
+            }
+            ChunkedBuffer copy = roundTrip(src);
+            assertEquals(sb.toString(), copy.toString());
+            copy.append("more");
+            assertEquals(sb + "more", copy.toString());
+        }
+        assertEquals("", roundTrip(new ChunkedBuffer()).toString());
+    }
+
+    @Test
+    public void testModifiedUtf8() throws IOException {
+        String sample = "abc\u0000\u20ac";
+        ChunkedBuffer src = new ChunkedBuffer(sample);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChunkedCodec.write(src, new DataOutputStream(bytes));
+        ByteArrayOutputStream utf = new ByteArrayOutputStream();
+        new DataOutputStream(utf).writeUTF(sample);
+        byte[] encoded = bytes.toByteArray();
+        byte[] expected = utf.toByteArray();
+        // after the header and the encoded length, and the length prefix of writeUTF
+        assertArrayEquals(Arrays.copyOfRange(expected, 2, expected.length),
+                Arrays.copyOfRange(encoded, 31, encoded.length));
+        assertEquals(sample, roundTrip(src).toString());
+
+        encoded[encoded.length - 1] = 'x';
+        try {
+            ChunkedCodec.readBuffer(new DataInputStream(new ByteArrayInputStream(encoded)));
+            fail();
+        } catch (StreamCorruptedException expectedException) {
+        }
+    }
+
+    @Test
+    public void testCorruptLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ChunkedCodec.VERSION);
+        out.writeByte('B');
+        out.writeByte(0);
+        out.writeInt(16);
+        out.writeInt(1024);
+        out.writeDouble(1.5);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[100]);
+        try {
+            ChunkedCodec.readByteArray(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void testCorruptChunkConfiguration() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ChunkedCodec.VERSION);
+        out.writeByte('B');
+        out.writeByte(0);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeDouble(1.5);
+        out.writeInt(1);
+        out.writeByte('x');
+        ChunkedByteArray read = ChunkedCodec.readByteArray(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(1, read.length());
+        assertEquals(1, read.capacity());
+
+        // a length past the end of the stream, with chunks that would grow without bound
+        bytes.reset();
+        out.writeByte(ChunkedCodec.VERSION);
+        out.writeByte('C');
+        out.writeByte(0);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeDouble(1e300);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[10000]);
+        try {
+            ChunkedCodec.readBuffer(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void testByteArrayOverChannel() throws IOException {
+        ChunkedByteArray src = new ChunkedByteArray(16, 64);
+        for (int i = 0; i < 5000; i++) {
+            src.append((byte) i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChunkedCodec.write(src, Channels.newChannel(bytes));
+        ChunkedByteArray copy = ChunkedCodec.readByteArray(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(Arrays.equals(src.toArray(), copy.toArray()));
+        copy = ChunkedCodec.readByteArray(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(src.contentEquals(copy));
+    }
+
+    @Test
+    public void testNonBlockingChannel() throws Exception {
+        ChunkedByteArray src = new ChunkedByteArray(16, 4096);
+        for (int i = 0; i < 300000; i++) {
+            src.append((byte) (i * 13));
+        }
+        final Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(1000);
+                try {
+                    int n;
+                    while ((n = pipe.source().read(buf)) >= 0) {
+                        received.write(buf.array(), 0, n);
+                        buf.clear();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        ChunkedCodec.write(src, pipe.sink());
+        pipe.sink().close();
+        reader.join(10000);
+        ChunkedByteArray copy = ChunkedCodec.readByteArray(
+                new DataInputStream(new ByteArrayInputStream(received.toByteArray())));
+        assertTrue(src.contentEquals(copy));
+    }
+
+    @Test
+    public void testExternalizable() throws Exception {
+        ChunkedBuffer chars = new ChunkedBuffer(4, 16);
+        chars.append("externalized €");
+        ChunkedByteArray bytes = new ChunkedByteArray(4, 16);
+        bytes.append(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, 0, 9);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(chars);
+        oos.writeObject(bytes);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ChunkedBuffer charsCopy = (ChunkedBuffer) ois.readObject();
+        ChunkedByteArray bytesCopy = (ChunkedByteArray) ois.readObject();
+        assertEquals("externalized €", charsCopy.toString());
+        assertTrue(bytes.contentEquals(bytesCopy));
+        assertEquals(16, bytesCopy.getMaxChunkSize());
+    }
+}
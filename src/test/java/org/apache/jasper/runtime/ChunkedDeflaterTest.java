@@ -0,0 +1,115 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class ChunkedDeflaterTest {
+
+    private static ChunkedByteArray content(int length) {
+        ChunkedByteArray src = new ChunkedByteArray(64, 1024);
+        for (int i = 0; i < length; i++) {
+            src.append((byte) ("<td>" + i % 97 + "</td>").charAt(i % 7));
+        }
+        return src;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        ChunkedDeflater deflater = new ChunkedDeflater();
+        ChunkedByteArray src = content(100000);
+        for (int i = 0; i < 3; i++) {
+            ChunkedByteArray dst = new ChunkedByteArray(16, 256);
+            deflater.gzip(src, dst);
+            assertTrue(dst.length() < src.length());
+            byte[] result = readFully(new GZIPInputStream(new ByteArrayInputStream(dst.toArray())));
+            assertTrue(Arrays.equals(src.toArray(), result));
+        }
+        assertEquals(1, deflater.getPooledCount());
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+        ChunkedByteArray src = content(5000);
+        ChunkedByteArray dst = new ChunkedByteArray();
+        new ChunkedDeflater(9).deflate(src, dst);
+        byte[] result = readFully(new InflaterInputStream(new ByteArrayInputStream(dst.toArray())));
+        assertTrue(Arrays.equals(src.toArray(), result));
+    }
+
+    @Test
+    public void testGzipToChannel() throws IOException {
+        ChunkedByteArray src = content(50000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ChunkedDeflater().gzip(src, Channels.newChannel(out));
+        byte[] result = readFully(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(Arrays.equals(src.toArray(), result));
+    }
+
+    @Test
+    public void testGzipToNonBlockingChannel() throws Exception {
+        // random bytes don't compress, so the output is enough to fill the pipe
+        byte[] bytes = new byte[300000];
+        new Random(42).nextBytes(bytes);
+        ChunkedByteArray src = new ChunkedByteArray(64, 4096);
+        src.append(bytes, 0, bytes.length);
+        final Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    received.write(readFully(Channels.newInputStream(pipe.source())));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        new ChunkedDeflater().gzip(src, pipe.sink());
+        pipe.sink().close();
+        reader.join(10000);
+        byte[] result = readFully(new GZIPInputStream(new ByteArrayInputStream(received.toByteArray())));
+        assertTrue(Arrays.equals(bytes, result));
+    }
+
+    @Test
+    public void testSyncFlush() throws Exception {
+        ChunkedByteArray dst = new ChunkedByteArray();
+        ChunkedDeflater.Stream stream = new ChunkedDeflater().open(dst, false);
+        byte[] head = "<html><head><title>streamed</title></head>".getBytes("US-ASCII");
+        stream.write(head);
+        stream.flush();
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(dst.toArray());
+        byte[] result = new byte[head.length + 10];
+        assertEquals(head.length, inflater.inflate(result));
+        assertFalse(inflater.finished());
+        assertTrue(Arrays.equals(head, Arrays.copyOf(result, head.length)));
+        stream.close();
+    }
+}
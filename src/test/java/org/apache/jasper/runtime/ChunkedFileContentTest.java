@@ -0,0 +1,121 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChunkedFileContentTest {
+
+    @Test
+    public void testHeaderFileTrailer() throws IOException {
+        byte[] fileBytes = new byte[100000];
+        for (int i = 0; i < fileBytes.length; i++) {
+            fileBytes[i] = (byte) (i * 7);
+        }
+        Path file = Files.createTempFile("chunked", ".bin");
+        Path copy = Files.createTempFile("chunked", ".out");
+        try {
+            Files.write(file, fileBytes);
+            ChunkedByteArray header = new ChunkedByteArray(16, 64);
+            header.writeBytes("HTTP header\r\n\r\n");
+            for (int i = 0; i < 100; i++) {
+                header.writeInt(i);
+            }
+            ChunkedByteArray trailer = new ChunkedByteArray(new byte[]{1, 2, 3});
+
+            ChunkedFileContent content = new ChunkedFileContent();
+            content.append(header);
+            content.mapFile(file, 1000, 50000);
+            content.append(trailer);
+            content.mapFile(file);
+            assertEquals(header.length() + 50000 + 3 + fileBytes.length, content.length());
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            header.writeOut(expected);
+            expected.write(fileBytes, 1000, 50000);
+            expected.write(new byte[]{1, 2, 3});
+            expected.write(fileBytes);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            content.writeOut(out);
+            assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            content.writeTo(Channels.newChannel(out));
+            assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+
+            FileChannel target = FileChannel.open(copy, StandardOpenOption.WRITE);
+            try {
+                content.writeTo(target);
+            } finally {
+                target.close();
+            }
+            assertTrue(Arrays.equals(expected.toByteArray(), Files.readAllBytes(copy)));
+            content.close();
+            assertEquals(0, content.length());
+        } finally {
+            Files.delete(file);
+            Files.delete(copy);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegionBeyondEnd() throws IOException {
+        Path file = Files.createTempFile("chunked", ".bin");
+        try {
+            Files.write(file, new byte[10]);
+            new ChunkedFileContent().mapFile(file, 5, 6);
+        } finally {
+            Files.delete(file);
+        }
+    }
+    @Test
+    public void testNonBlockingTarget() throws Exception {
+        final byte[] fileBytes = new byte[300000];
+        for (int i = 0; i < fileBytes.length; i++) {
+            fileBytes[i] = (byte) (i * 13);
+        }
+        Path file = Files.createTempFile("chunked", ".bin");
+        try {
+            Files.write(file, fileBytes);
+            ChunkedFileContent content = new ChunkedFileContent();
+            content.mapFile(file);
+            final Pipe pipe = Pipe.open();
+            pipe.sink().configureBlocking(false);
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    ByteBuffer buf = ByteBuffer.allocate(1000);
+                    try {
+                        while (received.size() < fileBytes.length) {
+                            buf.clear();
+                            int n = pipe.source().read(buf);
+                            received.write(buf.array(), 0, n);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            reader.start();
+            content.writeTo(pipe.sink());
+            reader.join(10000);
+            assertArrayEquals(fileBytes, received.toByteArray());
+            content.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ChunkedPipeTest {
+
+    @Test
+    public void testFlushPublishesPartialChunk() throws IOException {
+        ChunkedPipe pipe = new ChunkedPipe(16, 16);
+        Reader reader = pipe.getReader();
+        pipe.write("abc");
+        assertFalse(reader.ready());
+        pipe.flush();
+        assertTrue(reader.ready());
+        char[] buf = new char[10];
+        assertEquals(3, reader.read(buf, 0, 10));
+        assertEquals("abc", new String(buf, 0, 3));
+        assertFalse(reader.ready());
+
+        pipe.write("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+        assertTrue(reader.ready()); // the first chunk got sealed
+        pipe.close();
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            sb.append((char) c);
+        }
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", sb.toString());
+    }
+
+    @Test
+    public void testConcurrentWriterAndReader() throws Exception {
+        final ChunkedPipe pipe = new ChunkedPipe(16, 64);
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append(i).append(',');
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        pipe.write(i + ",");
+                        if (i % 100 == 0) {
+                            pipe.flush();
+                        }
+                    }
+                    pipe.close();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        Reader reader = pipe.getReader();
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[7];
+        int len;
+        while ((len = reader.read(buf, 0, buf.length)) != -1) {
+            sb.append(buf, 0, len);
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(expected.toString(), sb.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterReaderClosed() throws IOException {
+        ChunkedPipe pipe = new ChunkedPipe(16, 16);
+        pipe.getReader().close();
+        pipe.write("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        ChunkedPipe pipe = new ChunkedPipe(16, 16, 1.5, 64, ChunkedPipe.OverflowPolicy.DROP_OLDEST);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            pipe.write(i % 10 + '0');
+            expected.append((char) (i % 10 + '0'));
+            assertTrue(pipe.size() <= 64);
+        }
+        pipe.close();
+        assertTrue(pipe.getDroppedChars() > 0);
+        StringWriter out = new StringWriter();
+        assertEquals(1000 - pipe.getDroppedChars(), pipe.drainTo(out));
+        assertEquals(expected.substring((int) pipe.getDroppedChars()), out.toString());
+        assertEquals(-1, pipe.drainTo(out));
+    }
+
+    @Test
+    public void testBlockingBound() throws Exception {
+        final ChunkedPipe pipe = new ChunkedPipe(16, 16, 1.5, 64, ChunkedPipe.OverflowPolicy.BLOCK);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        pipe.write(i % 10 + '0');
+                        if (pipe.size() > 64) {
+                            throw new AssertionError("pipe grew to " + pipe.size());
+                        }
+                    }
+                    pipe.close();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        Reader reader = pipe.getReader();
+        assertEquals(10, reader.skip(10));
+        int c;
+        int i = 10;
+        while ((c = reader.read()) != -1) {
+            assertEquals(i++ % 10 + '0', c);
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(10000, i);
+        assertEquals(0, pipe.getDroppedChars());
+    }
+}
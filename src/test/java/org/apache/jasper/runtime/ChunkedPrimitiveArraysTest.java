@@ -0,0 +1,189 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+
+import static org.junit.Assert.*;
+
+public class ChunkedPrimitiveArraysTest {
+
+    @Test
+    public void testLongArray() {
+        ChunkedLongArray array = new ChunkedLongArray(16, 64);
+        assertEquals(0, array.length());
+        assertEquals(0, array.toArray().length);
+        for (int i = 0; i < 1000; i++) {
+            array.append(i * 1000000007L);
+        }
+        long[] bulk = new long[500];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = -i;
+        }
+        array.append(bulk, 0, bulk.length);
+        assertEquals(1500, array.length());
+        for (int i = 999; i >= 0; i--) {
+            assertEquals(i * 1000000007L, array.get(i));
+        }
+        assertEquals(-499, array.get(1499));
+        array.set(17, 42);
+        assertEquals(42, array.get(17));
+        try {
+            array.get(1500);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException expected) {
+            // beyond the end
+        }
+
+        long[] range = new long[300];
+        array.get(900, 1200, range, 0);
+        assertEquals(900 * 1000000007L, range[0]);
+        assertEquals(0, range[100]);
+        assertEquals(-199, range[299]);
+
+        long[] all = array.toArray();
+        PrimitiveIterator.OfLong iterator = array.iterator();
+        for (long value : all) {
+            assertEquals(value, iterator.nextLong());
+        }
+        assertFalse(iterator.hasNext());
+
+        long sum = 0;
+        for (long value : all) {
+            sum += value;
+        }
+        assertEquals(sum, array.stream().parallel().sum());
+        Spliterator.OfLong spliterator = array.spliterator();
+        Spliterator.OfLong head = spliterator.trySplit();
+        assertEquals(1500, head.estimateSize() + spliterator.estimateSize());
+
+        array.clear();
+        assertEquals(0, array.length());
+        array.append(7);
+        assertEquals(7, array.get(0));
+    }
+
+    @Test
+    public void testIntAndDoubleArrays() {
+        ChunkedIntArray ints = new ChunkedIntArray(16, 64);
+        ChunkedDoubleArray doubles = new ChunkedDoubleArray(16, 64);
+        for (int i = 0; i < 3000; i++) {
+            ints.append(i);
+            doubles.append(i / 2.0);
+        }
+        assertEquals(3000 * 2999 / 2, ints.stream().parallel().sum());
+        assertEquals(3000 * 2999 / 4.0, doubles.stream().parallel().sum(), 0);
+        assertEquals(1234, ints.get(1234));
+        assertEquals(617, doubles.get(1234), 0);
+        assertEquals(2999, ints.toArray()[2999]);
+        assertEquals(3000, doubles.iterator().hasNext() ? doubles.toArray().length : 0);
+    }
+
+    // with an initial capacity of 16 and a growth factor of 1.5 the first chunks end at 16, 32 and 48
+    private static final int[] CHUNK_EDGES = {15, 16, 31, 32, 47, 48};
+
+    @Test
+    public void testIntArrayAcrossChunks() {
+        ChunkedIntArray array = new ChunkedIntArray(16, 64);
+        for (int i = 0; i < 1000; i++) {
+            array.append(i);
+        }
+        for (int index : CHUNK_EDGES) {
+            array.set(index, -index);
+        }
+        for (int i = 0; i < 60; i++) {
+            assertEquals(Arrays.binarySearch(CHUNK_EDGES, i) >= 0 ? -i : i, array.get(i));
+        }
+        int[] range = new int[40];
+        array.get(10, 50, range, 0);
+        assertEquals(-15, range[5]);
+        assertEquals(17, range[7]);
+        assertEquals(-48, range[38]);
+
+        int[] all = array.toArray();
+        Spliterator.OfInt tail = array.spliterator();
+        assertTrue(tail.tryAdvance((int value) -> assertEquals(0, value)));
+        Spliterator.OfInt head = tail.trySplit();
+        assertEquals(999, head.estimateSize() + tail.estimateSize());
+        assertTrue(head.estimateSize() > 250 && tail.estimateSize() > 250);
+        final List<Integer> seen = new ArrayList<Integer>();
+        head.forEachRemaining((int value) -> seen.add(value));
+        assertEquals(0, head.estimateSize());
+        assertFalse(head.tryAdvance((int value) -> fail()));
+        tail.forEachRemaining((int value) -> seen.add(value));
+        assertEquals(999, seen.size());
+        for (int i = 1; i < all.length; i++) {
+            assertEquals(all[i], (int) seen.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testLongArrayAcrossChunks() {
+        ChunkedLongArray array = new ChunkedLongArray(16, 64);
+        for (int i = 0; i < 1000; i++) {
+            array.append(i * 1000000007L);
+        }
+        for (int index : CHUNK_EDGES) {
+            array.set(index, -index);
+        }
+        for (int i = 0; i < 60; i++) {
+            assertEquals(Arrays.binarySearch(CHUNK_EDGES, i) >= 0 ? -i : i * 1000000007L, array.get(i));
+        }
+
+        long[] all = array.toArray();
+        Spliterator.OfLong tail = array.spliterator();
+        Spliterator.OfLong head = tail.trySplit();
+        assertEquals(1000, head.estimateSize() + tail.estimateSize());
+        assertTrue(head.estimateSize() > 250 && tail.estimateSize() > 250);
+        Spliterator.OfLong quarter = head.trySplit();
+        assertEquals(1000, quarter.estimateSize() + head.estimateSize() + tail.estimateSize());
+        final List<Long> seen = new ArrayList<Long>();
+        quarter.forEachRemaining((long value) -> seen.add(value));
+        head.forEachRemaining((long value) -> seen.add(value));
+        while (tail.tryAdvance((long value) -> seen.add(value))) {
+            // one by one
+        }
+        assertEquals(1000, seen.size());
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(all[i], (long) seen.get(i));
+        }
+    }
+
+    @Test
+    public void testDoubleArrayAcrossChunks() {
+        ChunkedDoubleArray array = new ChunkedDoubleArray(16, 64);
+        for (int i = 0; i < 1000; i++) {
+            array.append(i / 4.0);
+        }
+        for (int index : CHUNK_EDGES) {
+            array.set(index, -index);
+        }
+        for (int i = 0; i < 60; i++) {
+            assertEquals(Arrays.binarySearch(CHUNK_EDGES, i) >= 0 ? -i : i / 4.0, array.get(i), 0);
+        }
+        PrimitiveIterator.OfDouble iterator = array.iterator();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(array.get(i), iterator.nextDouble(), 0);
+        }
+        assertFalse(iterator.hasNext());
+
+        // a single chunk doesn't split
+        ChunkedDoubleArray small = new ChunkedDoubleArray(16, 64);
+        small.append(1.5);
+        assertNull(small.spliterator().trySplit());
+        assertEquals(0, new ChunkedDoubleArray().spliterator().estimateSize());
+
+        Spliterator.OfDouble tail = array.spliterator();
+        Spliterator.OfDouble head = tail.trySplit();
+        assertEquals(1000, head.estimateSize() + tail.estimateSize());
+        assertTrue(head.estimateSize() > 250 && tail.estimateSize() > 250);
+        final double[] sums = new double[2];
+        head.forEachRemaining((double value) -> sums[0] += value);
+        tail.forEachRemaining((double value) -> sums[1] += value);
+        assertEquals(array.stream().sum(), sums[0] + sums[1], 0);
+    }
+}
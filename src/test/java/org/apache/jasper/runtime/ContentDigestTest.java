@@ -0,0 +1,78 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ContentDigestTest {
+
+    private static byte[] sha256(byte[] content) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+
+    private static byte[] crc32(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        long value = crc.getValue();
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    @Test
+    public void testByteArrayDigest() throws Exception {
+        ChunkedByteArray buf = new ChunkedByteArray(16, 64);
+        buf.append(new byte[]{1, 2, 3}, 0, 3);
+        buf.trackDigest(ContentDigest.sha256());
+        for (int i = 0; i < 1000; i++) {
+            buf.append((byte) i);
+            if (i % 97 == 0) {
+                assertTrue(Arrays.equals(sha256(buf.toArray()), buf.getDigest()));
+            }
+        }
+        assertTrue(Arrays.equals(sha256(buf.toArray()), buf.getDigest()));
+
+        buf.setLength(500);
+        assertTrue(Arrays.equals(sha256(buf.toArray()), buf.getDigest()));
+        buf.append(new byte[300], 0, 300);
+        assertTrue(Arrays.equals(sha256(buf.toArray()), buf.getDigest()));
+        buf.clear();
+        assertTrue(Arrays.equals(sha256(new byte[0]), buf.getDigest()));
+    }
+
+    @Test
+    public void testBufferDigestIsOverUtf8() throws Exception {
+        ChunkedBuffer buf = new ChunkedBuffer(4, 16);
+        buf.trackDigest(ContentDigest.crc32());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            String text = i % 3 == 0 ? "caf\u00e9 " : i % 3 == 1 ? "\ud83d\ude00\u20ac" : "abc";
+            buf.append(text);
+            sb.append(text);
+            assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+        }
+
+        buf.append("\ud83d\ude00");
+        sb.append("\ud83d\ude00");
+        buf.setLength(buf.length() - 1); // cut a surrogate pair in half
+        sb.setLength(sb.length() - 1);
+        assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+        buf.append("\ude01x");
+        sb.append("\ude01x");
+        assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+
+        // a lone high surrogate followed by something else keeps the '?' it was digested as
+        for (int i = 0; i < 50; i++) {
+            buf.append("\ud83d");
+            sb.append("\ud83d");
+            assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+            assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+            String next = i % 2 == 0 ? "y" : "\ud83d";
+            buf.append(next);
+            sb.append(next);
+        }
+        assertTrue(Arrays.equals(crc32(sb.toString().getBytes("UTF-8")), buf.getDigest()));
+    }
+}
@@ -0,0 +1,99 @@
+package org.apache.jasper.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SegmentedBufferTest {
+
+    private static List<Future<?>> render(ExecutorService pool, SegmentedBuffer buffer, StringBuilder expected) {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 20; i++) {
+            final SegmentedBuffer.Segment segment = buffer.newSegment();
+            final int region = i;
+            for (int j = 0; j < 100 * region; j++) {
+                expected.append("region ").append(region).append(' ');
+            }
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 100 * region; j++) {
+                        segment.append("region " + region + " ");
+                    }
+                    segment.close();
+                }
+            }));
+        }
+        return futures;
+    }
+
+    @Test
+    public void testSpliceTo() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            SegmentedBuffer buffer = new SegmentedBuffer(16, 64);
+            StringBuilder expected = new StringBuilder();
+            render(pool, buffer, expected);
+            ChunkedBuffer target = new ChunkedBuffer("header ");
+            buffer.spliceTo(target);
+            assertEquals("header " + expected, target.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteOut() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            SegmentedBuffer buffer = new SegmentedBuffer();
+            StringBuilder expected = new StringBuilder();
+            render(pool, buffer, expected);
+            StringWriter writer = new StringWriter();
+            buffer.writeOut(writer);
+            assertEquals(expected.toString(), writer.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteCompletedStopsAtFirstIncompleteSegment() throws IOException {
+        SegmentedBuffer buffer = new SegmentedBuffer();
+        SegmentedBuffer.Segment first = buffer.newSegment();
+        SegmentedBuffer.Segment second = buffer.newSegment();
+        second.append("second");
+        second.close();
+        StringWriter writer = new StringWriter();
+        assertEquals(0, buffer.writeCompleted(writer));
+        first.append("first ");
+        first.close();
+        assertEquals(2, buffer.writeCompleted(writer));
+        assertEquals("first second", writer.toString());
+    }
+    @Test
+    public void testSerializeSegment() throws Exception {
+        SegmentedBuffer.Segment segment = new SegmentedBuffer(16, 64).newSegment();
+        for (int i = 0; i < 50; i++) {
+            segment.append("segment ");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(segment);
+        out.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(ChunkedBuffer.class, copy.getClass());
+        assertEquals(segment.toString(), copy.toString());
+    }
+}